@@ -0,0 +1,163 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The results of an operation on a batch of items, such as {@link Key#encryptAll(List)}.
+ *
+ * <p>
+ *     Each item either succeeds, in which case {@link #get(int)} returns its result, or fails, in which
+ *     case {@link #getFailure(int)} returns the reason.  A failure only affects its own item.
+ * </p>
+ *
+ * @param <T> The type of the result for each item.
+ */
+public class BatchResult<T> {
+    /**
+     * Something that is done to each item of a batch.
+     */
+    public interface Operation<I, T> {
+        T apply (I item) throws EncryptionException;
+    }
+
+    private final List<T> results;
+    private final List<EncryptionException> failures;
+
+    public BatchResult(List<T> results, List<EncryptionException> failures) {
+        this.results = results;
+        this.failures = failures;
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * The result for an item, or null if the item failed.
+     */
+    public T get(int index) {
+        return results.get(index);
+    }
+
+    /**
+     * Why an item failed, or null if it succeeded.
+     */
+    public EncryptionException getFailure(int index) {
+        return failures.get(index);
+    }
+
+    public boolean isSuccess(int index) {
+        return failures.get(index) == null;
+    }
+
+    public int getFailureCount() {
+        int count = 0;
+        for (EncryptionException failure : failures) {
+            if (failure != null)
+                count++;
+        }
+
+        return count;
+    }
+
+    public boolean hasFailures() {
+        return getFailureCount() > 0;
+    }
+
+    /**
+     * The results in the same order as the items; failed items have null results.
+     */
+    public List<T> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Apply an operation to every item in a batch, spread across a pool.
+     *
+     * @param items The batch.
+     * @param operation What to do to each item.
+     * @param forkJoinPool The pool to do it in.
+     * @return The results.
+     */
+    public static <I, T> BatchResult<T> process(List<I> items, Operation<I, T> operation, ForkJoinPool forkJoinPool) {
+        List<I> list = new ArrayList<I>(items);
+        Object[] results = new Object[list.size()];
+        EncryptionException[] failures = new EncryptionException[list.size()];
+
+        if (!list.isEmpty())
+            forkJoinPool.invoke(new BatchTask<I, T>(list, operation, results, failures, 0, list.size()));
+
+        @SuppressWarnings("unchecked")
+        List<T> resultList = (List<T>) Arrays.asList(results);
+        return new BatchResult<T>(resultList, Arrays.asList(failures));
+    }
+
+    /**
+     * Processes a range of items, splitting the range in half until it is small enough to do directly.
+     */
+    private static class BatchTask<I, T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        public static final int THRESHOLD = 4;
+
+        private final List<I> items;
+        private final Operation<I, T> operation;
+        private final Object[] results;
+        private final EncryptionException[] failures;
+        private final int low;
+        private final int high;
+
+        public BatchTask(List<I> items, Operation<I, T> operation, Object[] results, EncryptionException[] failures,
+                         int low, int high) {
+            this.items = items;
+            this.operation = operation;
+            this.results = results;
+            this.failures = failures;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected void compute() {
+            if (high - low > THRESHOLD) {
+                int middle = (low + high) >>> 1;
+                invokeAll(new BatchTask<I, T>(items, operation, results, failures, low, middle),
+                        new BatchTask<I, T>(items, operation, results, failures, middle, high));
+                return;
+            }
+
+            for (int i = low; i < high; i++) {
+                try {
+                    results[i] = operation.apply(items.get(i));
+                } catch (EncryptionException e) {
+                    failures[i] = e;
+                } catch (RuntimeException e) {
+                    failures[i] = new EncryptionException("Exception processing item " + i, e);
+                }
+            }
+        }
+    }
+}
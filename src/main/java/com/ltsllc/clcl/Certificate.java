@@ -17,6 +17,7 @@
 
 package com.ltsllc.clcl;
 
+import com.ltsllc.commons.util.HexConverter;
 import com.sun.deploy.uitoolkit.impl.fx.ui.CertificateDialog;
 import jdk.internal.util.xml.impl.Input;
 import org.bouncycastle.cert.X509CertificateHolder;
@@ -35,9 +36,25 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 
+/**
+ * An X.509 certificate.
+ *
+ * <p>
+ *     The subject, issuer, fingerprint and hash code are computed the first time they are asked for and
+ *     then kept, so certificates are cheap to compare and to use as keys in hash maps.  Two certificates
+ *     are equal if they have the same subject and issuer.
+ * </p>
+ */
 public class Certificate {
+    public static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
     private X509Certificate certificate;
 
+    private volatile DistinguishedName subject;
+    private volatile DistinguishedName issuer;
+    private volatile String fingerprint;
+    private volatile int hashCode;
+
     public X509Certificate getCertificate() {
         return certificate;
     }
@@ -72,28 +89,105 @@ public class Certificate {
             return false;
 
         Certificate other = (Certificate) o;
-        DistinguishedName myDn = getSubject();
-        DistinguishedName otherDn = other.getSubject();
+        if (other == this)
+            return true;
 
-        if (!myDn.equals(otherDn))
+        if (hashCode() != other.hashCode())
             return false;
 
-        myDn = getIssuer();
-        otherDn = other.getIssuer();
-
-        return myDn.equals(otherDn);
+        return getSharedSubject().equals(other.getSharedSubject()) && getSharedIssuer().equals(other.getSharedIssuer());
     }
 
     public BigInteger getSerialnumber() {
         return  getCertificate().getSerialNumber();
     }
 
+    public int hashCode () {
+        int result = hashCode;
+
+        if (result == 0) {
+            result = 31 * getSharedSubject().hashCode() + getSharedIssuer().hashCode();
+            hashCode = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * The subject of the certificate.
+     *
+     * <p>
+     *     This is a copy, so the caller may change it without affecting the certificate.
+     * </p>
+     */
     public DistinguishedName getSubject () {
-        return new DistinguishedName(getCertificate().getSubjectDN());
+        return new DistinguishedName(getSharedSubject());
     }
 
+    /**
+     * The issuer of the certificate.
+     *
+     * <p>
+     *     This is a copy, so the caller may change it without affecting the certificate.
+     * </p>
+     */
     public DistinguishedName getIssuer () {
-        return new DistinguishedName(getCertificate().getIssuerDN());
+        return new DistinguishedName(getSharedIssuer());
+    }
+
+    /**
+     * The subject that {@link #equals(Object)} and {@link #hashCode()} use.  This is
+     * {@link DistinguishedName#intern() interned}, and therefore frozen.
+     */
+    private DistinguishedName getSharedSubject () {
+        DistinguishedName result = subject;
+
+        if (result == null) {
+            result = new DistinguishedName(getCertificate().getSubjectDN()).intern();
+            subject = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * The issuer that {@link #equals(Object)} and {@link #hashCode()} use.  This is interned, so certificates
+     * from the same issuer share one instance.
+     */
+    private DistinguishedName getSharedIssuer () {
+        DistinguishedName result = issuer;
+
+        if (result == null) {
+            result = new DistinguishedName(getCertificate().getIssuerDN()).intern();
+            issuer = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * The {@link #FINGERPRINT_ALGORITHM} digest of the encoded certificate, in hexadecimal.
+     *
+     * <p>
+     *     Unlike the subject and issuer, this identifies one particular certificate.
+     * </p>
+     *
+     * @throws EncryptionException If the certificate cannot be encoded.
+     */
+    public String getFingerprint () throws EncryptionException {
+        String result = fingerprint;
+
+        if (result == null) {
+            try {
+                java.security.MessageDigest messageDigest = CryptoEngines.getMessageDigest(FINGERPRINT_ALGORITHM);
+                result = HexConverter.toHexString(messageDigest.digest(getCertificate().getEncoded()));
+                fingerprint = result;
+            } catch (GeneralSecurityException e) {
+                throw new EncryptionException("Exception trying to compute fingerprint", e);
+            }
+        }
+
+        return result;
     }
 
     /*
@@ -0,0 +1,249 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.OperatorException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Something that issues certificates with a private key.
+ *
+ * <p>
+ *     {@link PrivateKey#sign(CertificateSigningRequest, Date, Date)} has to look up the signature algorithm,
+ *     parse the private key, build a signer and the issuer name and create a certificate factory every time
+ *     it is called.  A certificate authority builds the issuer name once, when it is created, and keeps
+ *     a signer and certificate factory for each thread that uses it, so issuing a certificate only does the
+ *     signing.
+ * </p>
+ *
+ * <p>
+ *     An instance is thread-safe.  The issuer name is taken from the private key's distinguished name when
+ *     the authority is created; changing the key's name afterwards does not affect the authority.
+ * </p>
+ */
+public class CertificateAuthority {
+    public static final String CERTIFICATE_TYPE = "X.509";
+
+    private static final Provider provider = new BouncyCastleProvider();
+
+    private PrivateKey privateKey;
+    private SerialNumberAllocator serialNumberAllocator;
+    private X500Name issuer;
+
+    private ThreadLocal<ContentSigner> contentSigners = new ThreadLocal<ContentSigner>();
+    private ThreadLocal<CertificateFactory> certificateFactories = new ThreadLocal<CertificateFactory>();
+
+    /**
+     * Create an authority that gives certificates random serial numbers.
+     *
+     * @see #CertificateAuthority(PrivateKey, SerialNumberAllocator)
+     */
+    public CertificateAuthority (PrivateKey privateKey) throws EncryptionException {
+        this(privateKey, new RandomSerialNumberAllocator());
+    }
+
+    /**
+     * @param privateKey The key to sign certificates with.  Its distinguished name becomes the issuer of
+     *                   the certificates.
+     * @param serialNumberAllocator Where the serial numbers of the certificates come from.
+     * @throws EncryptionException If the key cannot be used to sign certificates.
+     */
+    public CertificateAuthority (PrivateKey privateKey, SerialNumberAllocator serialNumberAllocator)
+            throws EncryptionException {
+        this.privateKey = privateKey;
+        this.serialNumberAllocator = serialNumberAllocator;
+
+        try {
+            this.issuer = new X500Name(privateKey.getDn().toString());
+        } catch (RuntimeException e) {
+            throw new EncryptionException("Exception trying to create certificate authority", e);
+        }
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    public SerialNumberAllocator getSerialNumberAllocator() {
+        return serialNumberAllocator;
+    }
+
+    public X500Name getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * Issue a certificate for a certificate signing request.
+     *
+     * @param certificateSigningRequest The request.  The certificate has the request's subject and public key.
+     * @param notValidBefore When the certificate becomes valid.
+     * @param notValidAfter When the certificate expires.
+     * @return The certificate.
+     * @throws EncryptionException If there is a problem creating the certificate.
+     */
+    public Certificate issue (CertificateSigningRequest certificateSigningRequest, Date notValidBefore,
+                              Date notValidAfter) throws EncryptionException {
+        try {
+            BigInteger serialNumber = getSerialNumberAllocator().next();
+            X509CertificateHolder holder = build(getIssuer(), serialNumber, certificateSigningRequest,
+                    notValidBefore, notValidAfter, getContentSigner());
+
+            return toCertificate(holder, getCertificateFactory());
+        } catch (IOException | OperatorException | GeneralSecurityException | RuntimeException e) {
+            //
+            // a signer that failed part way through may still have some of the old certificate in it
+            //
+            if (!(e instanceof CertificateException))
+                contentSigners.remove();
+
+            throw new EncryptionException("Exception trying to sign CSR", e);
+        }
+    }
+
+    /**
+     * Issue one certificate without creating an authority.
+     *
+     * <p>
+     *     Nothing is kept for later: the signer and certificate factory are created for this certificate and
+     *     then dropped, and nothing is left behind on the calling thread.  This is what
+     *     {@link PrivateKey#sign(CertificateSigningRequest, Date, Date)} uses.
+     * </p>
+     */
+    static Certificate issueOnce (PrivateKey privateKey, BigInteger serialNumber,
+                                  CertificateSigningRequest certificateSigningRequest, Date notValidBefore,
+                                  Date notValidAfter) throws EncryptionException {
+        try {
+            X500Name issuer = new X500Name(privateKey.getDn().toString());
+            X509CertificateHolder holder = build(issuer, serialNumber, certificateSigningRequest, notValidBefore,
+                    notValidAfter, privateKey.createContentSigner());
+
+            return toCertificate(holder, CertificateFactory.getInstance(CERTIFICATE_TYPE, provider));
+        } catch (IOException | OperatorException | GeneralSecurityException | RuntimeException e) {
+            throw new EncryptionException("Exception trying to sign CSR", e);
+        }
+    }
+
+    private static X509CertificateHolder build (X500Name issuer, BigInteger serialNumber,
+                                                CertificateSigningRequest certificateSigningRequest,
+                                                Date notValidBefore, Date notValidAfter,
+                                                ContentSigner contentSigner) throws IOException {
+        SubjectPublicKeyInfo keyInfo = SubjectPublicKeyInfo.getInstance(certificateSigningRequest.getPkcs10().
+                getSubjectPublicKeyInfo().getEncoded());
+
+        X500Name subject = new X500Name(certificateSigningRequest.getSubjectDn().toString());
+        X509v3CertificateBuilder certificateBuilder = new X509v3CertificateBuilder(issuer, serialNumber,
+                notValidBefore, notValidAfter, subject, keyInfo);
+
+        return certificateBuilder.build(contentSigner);
+    }
+
+    private static Certificate toCertificate (X509CertificateHolder holder, CertificateFactory certificateFactory)
+            throws IOException, CertificateException {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(holder.getEncoded());
+        X509Certificate x509Certificate = (X509Certificate) certificateFactory.generateCertificate(inputStream);
+        return new Certificate(x509Certificate);
+    }
+
+    /**
+     * Issue certificates for a batch of requests on the common {@link ForkJoinPool}.
+     *
+     * @see #issueAll(List, Date, Date, ForkJoinPool)
+     */
+    public BatchResult<Certificate> issueAll (List<CertificateSigningRequest> certificateSigningRequests,
+                                              Date notValidBefore, Date notValidAfter) {
+        return issueAll(certificateSigningRequests, notValidBefore, notValidAfter, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Issue certificates for a batch of requests in parallel.
+     *
+     * <p>
+     *     All the certificates have the same validity period.  A request that cannot be signed only fails
+     *     its own entry in the result.
+     * </p>
+     *
+     * @return The certificates, in the same order as the requests.
+     */
+    public BatchResult<Certificate> issueAll (List<CertificateSigningRequest> certificateSigningRequests,
+                                              final Date notValidBefore, final Date notValidAfter,
+                                              ForkJoinPool forkJoinPool) {
+        return BatchResult.process(certificateSigningRequests,
+                new BatchResult.Operation<CertificateSigningRequest, Certificate>() {
+                    @Override
+                    public Certificate apply(CertificateSigningRequest certificateSigningRequest)
+                            throws EncryptionException {
+                        return issue(certificateSigningRequest, notValidBefore, notValidAfter);
+                    }
+                }, forkJoinPool);
+    }
+
+    /**
+     * Return this thread's signer, creating it if this is the first time the thread has asked for one.
+     */
+    protected ContentSigner getContentSigner () throws OperatorException {
+        ContentSigner contentSigner = contentSigners.get();
+
+        if (contentSigner == null) {
+            contentSigner = createContentSigner();
+            contentSigners.set(contentSigner);
+        }
+
+        return contentSigner;
+    }
+
+    /**
+     * @see PrivateKey#createContentSigner()
+     */
+    protected ContentSigner createContentSigner () throws OperatorException {
+        try {
+            return getPrivateKey().createContentSigner();
+        } catch (IOException e) {
+            throw new OperatorCreationException("Exception trying to create signer", e);
+        }
+    }
+
+    protected CertificateFactory getCertificateFactory () throws CertificateException {
+        CertificateFactory certificateFactory = certificateFactories.get();
+
+        if (certificateFactory == null) {
+            certificateFactory = CertificateFactory.getInstance(CERTIFICATE_TYPE, provider);
+            certificateFactories.set(certificateFactory);
+        }
+
+        return certificateFactory;
+    }
+}
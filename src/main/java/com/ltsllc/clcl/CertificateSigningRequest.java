@@ -47,7 +47,7 @@ public class CertificateSigningRequest {
         try {
             X500Name x500Name = new X500Name(publicKey.getDn().toString());
 
-            String signatureAlgorithmName = "SHA1WithRSA";
+            String signatureAlgorithmName = Key.getSignatureAlgorithm(privateKey.getSecurityPrivateKey());
             Signature signature = Signature.getInstance(signatureAlgorithmName);
             signature.initSign(privateKey.getSecurityPrivateKey());
 
@@ -0,0 +1,266 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A way of encrypting messages with a session key.
+ *
+ * <p>
+ *     A cipher suite is identified by an id, which is what {@link Key#encrypt(String, byte[])} takes as its
+ *     algorithm and what an {@link EncryptedMessage} records, so the recipient knows how to decrypt the
+ *     message.  Suites are kept in a registry; the following are registered by default:
+ * </p>
+ *
+ * <ul>
+ *     <li>{@link #AES_GCM} &mdash; AES in Galois/Counter Mode.  Recent JVMs use the AES-NI and CLMUL
+ *     instructions for this where the processor has them.</li>
+ *     <li>{@link #CHACHA20_POLY1305} &mdash; for hosts without AES instructions.  This needs a JVM or
+ *     provider that supports ChaCha20-Poly1305 (Java 11 or later); see {@link #isAvailable()}.</li>
+ *     <li>{@link #AES_CTR_HMAC_SHA256} &mdash; AES in counter mode followed by an HMAC-SHA256 of the
+ *     initialization vector and cipher text.</li>
+ * </ul>
+ *
+ * <p>
+ *     All of these check the integrity of the message when it is decrypted.  Algorithms that are not
+ *     registered (such as the default, {@link Key#SESSION_ALGORITHM}) are treated as plain JCE
+ *     transformations.
+ * </p>
+ */
+abstract public class CipherSuite {
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    public static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+    public static final String AES_CTR_HMAC_SHA256 = "AES/CTR/HmacSHA256";
+
+    private static final Map<String, CipherSuite> registry = new ConcurrentHashMap<String, CipherSuite>();
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    static {
+        register(new JceCipherSuite(AES_GCM, "AES", 16, 12, 16, JceCipherSuite.ParameterType.GCM));
+        register(new JceCipherSuite(CHACHA20_POLY1305, "ChaCha20", 32, 12, 16, JceCipherSuite.ParameterType.IV));
+        register(new EncryptThenMacCipherSuite(AES_CTR_HMAC_SHA256, "AES/CTR/NoPadding", "AES", 16,
+                "HmacSHA256", 32));
+    }
+
+    private String id;
+
+    protected CipherSuite (String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The length, in bytes, of the session keys for this suite.
+     */
+    abstract public int getKeyLength ();
+
+    /**
+     * The length, in bytes, of the initialization vectors for this suite.
+     */
+    abstract public int getIvLength ();
+
+    /**
+     * Convert the encoded form of a session key back into a key.
+     */
+    abstract public SecretKey toSecretKey (byte[] encoded);
+
+    abstract public byte[] encrypt (SecretKey sessionKey, byte[] iv, byte[] plainText) throws GeneralSecurityException;
+
+    /**
+     * Decrypt a message.
+     *
+     * @throws javax.crypto.AEADBadTagException If the message has been tampered with.
+     * @throws GeneralSecurityException If there is some other problem decrypting the message.
+     */
+    abstract public byte[] decrypt (SecretKey sessionKey, byte[] iv, byte[] cipherText) throws GeneralSecurityException;
+
+    /**
+     * Encrypt the remaining bytes of one buffer into another.
+     *
+     * <p>
+     *     This version copies the message into an array and calls {@link #encrypt(SecretKey, byte[], byte[])};
+     *     suites that can work on buffers directly should override it.  On success, the plain text buffer has
+     *     no bytes remaining and the cipher text buffer is positioned just past the cipher text.
+     * </p>
+     *
+     * @return The number of bytes written.
+     * @throws javax.crypto.ShortBufferException If the cipher text buffer is too small.  Neither buffer is
+     * changed in that case.
+     */
+    public int encrypt (SecretKey sessionKey, byte[] iv, ByteBuffer plainText, ByteBuffer cipherText)
+            throws GeneralSecurityException {
+        byte[] input = new byte[plainText.remaining()];
+        plainText.duplicate().get(input);
+
+        return transfer(plainText, encrypt(sessionKey, iv, input), cipherText);
+    }
+
+    /**
+     * Decrypt the remaining bytes of one buffer into another.
+     *
+     * @see #encrypt(SecretKey, byte[], ByteBuffer, ByteBuffer)
+     */
+    public int decrypt (SecretKey sessionKey, byte[] iv, ByteBuffer cipherText, ByteBuffer plainText)
+            throws GeneralSecurityException {
+        byte[] input = new byte[cipherText.remaining()];
+        cipherText.duplicate().get(input);
+
+        return transfer(cipherText, decrypt(sessionKey, iv, input), plainText);
+    }
+
+    private static int transfer (ByteBuffer input, byte[] output, ByteBuffer outputBuffer) throws ShortBufferException {
+        if (output.length > outputBuffer.remaining())
+            throw new ShortBufferException("Need " + output.length + " bytes, have " + outputBuffer.remaining());
+
+        input.position(input.limit());
+        outputBuffer.put(output);
+        return output.length;
+    }
+
+    /**
+     * Create a new, initialized {@link Cipher} for streaming.
+     *
+     * @throws GeneralSecurityException If the suite cannot be used as a single Cipher.
+     */
+    abstract public Cipher createCipher (int mode, SecretKey sessionKey, byte[] iv) throws GeneralSecurityException;
+
+    /**
+     * Can this suite be used on this JVM?
+     */
+    public boolean isAvailable () {
+        try {
+            SecretKey sessionKey = generateKey();
+            byte[] iv = newIv();
+            decrypt(sessionKey, iv, encrypt(sessionKey, iv, new byte[1]));
+            return true;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    public SecretKey generateKey () {
+        byte[] encoded = new byte[getKeyLength()];
+        secureRandom.nextBytes(encoded);
+        return toSecretKey(encoded);
+    }
+
+    public byte[] newIv () {
+        byte[] iv = new byte[getIvLength()];
+        secureRandom.nextBytes(iv);
+        return iv;
+    }
+
+    public static void register (CipherSuite cipherSuite) {
+        registry.put(cipherSuite.getId(), cipherSuite);
+    }
+
+    /**
+     * Return the suite with an id, or null if there is no such suite.
+     */
+    public static CipherSuite getCipherSuite (String id) {
+        return registry.get(id);
+    }
+
+    public static List<CipherSuite> getCipherSuites () {
+        return new ArrayList<CipherSuite>(registry.values());
+    }
+
+    public static List<CipherSuite> getAvailableCipherSuites () {
+        List<CipherSuite> list = new ArrayList<CipherSuite>();
+        for (CipherSuite cipherSuite : registry.values()) {
+            if (cipherSuite.isAvailable())
+                list.add(cipherSuite);
+        }
+
+        return list;
+    }
+
+    /**
+     * Find the fastest available suite on this machine.
+     *
+     * <p>
+     *     This method times each available suite encrypting and decrypting a sample message and returns
+     *     the quickest.  It takes a noticeable amount of time, so the result should be kept rather than
+     *     recomputed for every message.
+     * </p>
+     *
+     * @param messageLength The length of the sample message.
+     * @param iterations How many times to encrypt and decrypt the sample for each suite.
+     * @return The fastest suite.
+     */
+    public static CipherSuite findFastest (int messageLength, int iterations) {
+        byte[] sample = new byte[messageLength];
+        secureRandom.nextBytes(sample);
+
+        CipherSuite fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+
+        for (CipherSuite cipherSuite : getAvailableCipherSuites()) {
+            try {
+                SecretKey sessionKey = cipherSuite.generateKey();
+
+                // warm up, so the JIT has a chance to compile the suite before it is timed
+                roundTrip(cipherSuite, sessionKey, sample, iterations);
+
+                long start = System.nanoTime();
+                roundTrip(cipherSuite, sessionKey, sample, iterations);
+                long time = System.nanoTime() - start;
+
+                if (time < fastestTime) {
+                    fastest = cipherSuite;
+                    fastestTime = time;
+                }
+            } catch (GeneralSecurityException e) {
+                // the suite was available a moment ago; ignore it
+            }
+        }
+
+        return fastest;
+    }
+
+    private static void roundTrip (CipherSuite cipherSuite, SecretKey sessionKey, byte[] sample, int iterations)
+            throws GeneralSecurityException {
+        for (int i = 0; i < iterations; i++) {
+            // some modes, such as GCM, refuse to encrypt twice with the same initialization vector
+            byte[] iv = cipherSuite.newIv();
+            cipherSuite.decrypt(sessionKey, iv, cipherSuite.encrypt(sessionKey, iv, sample));
+        }
+    }
+
+    public String toString () {
+        return getId();
+    }
+
+    protected static SecretKey toSecretKey (byte[] encoded, String algorithm) {
+        return new SecretKeySpec(encoded, algorithm);
+    }
+}
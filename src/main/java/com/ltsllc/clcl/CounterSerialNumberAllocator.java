@@ -0,0 +1,189 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SerialNumberAllocator} that counts up from 1.
+ *
+ * <p>
+ *     The allocator reserves serial numbers in batches.  Before it hands out any serial number in a batch,
+ *     it records the end of the batch (the high-water mark) in a file, so a restarted allocator starts after
+ *     every serial number the previous one could have used, even if the previous one crashed.  This means
+ *     that the numbers left in a batch when the allocator stops are never used, but also that the file is
+ *     only written once per batch.
+ * </p>
+ *
+ * <p>
+ *     The file is replaced atomically: the new mark is written to a temporary file in the same directory,
+ *     flushed to disk and then moved over the old file, and the directory is flushed as well so that the
+ *     move survives a crash.  Allocating a serial number within a batch only
+ *     takes an atomic increment; only the thread that runs off the end of a batch waits for the file.
+ * </p>
+ */
+public class CounterSerialNumberAllocator implements SerialNumberAllocator {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private Path file;
+    private int batchSize;
+    private AtomicLong counter;
+    private volatile long highWaterMark;
+
+    public CounterSerialNumberAllocator (Path file) throws EncryptionException {
+        this(file, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param file Where to keep the high-water mark.  If the file does not exist, counting starts at 1.
+     * @param batchSize How many serial numbers to reserve each time the file is written.
+     * @throws EncryptionException If the file cannot be read or written.
+     */
+    public CounterSerialNumberAllocator (Path file, int batchSize) throws EncryptionException {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+
+        this.file = file;
+        this.batchSize = batchSize;
+
+        long start = readHighWaterMark();
+        this.counter = new AtomicLong(start);
+        this.highWaterMark = start;
+        reserve(start);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * The first serial number that has not been reserved.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    @Override
+    public BigInteger next () throws EncryptionException {
+        long serialNumber = counter.getAndIncrement();
+
+        if (serialNumber >= highWaterMark)
+            reserve(serialNumber);
+
+        return BigInteger.valueOf(serialNumber);
+    }
+
+    /**
+     * Make sure a serial number has been reserved, writing a new high-water mark if it has not.
+     */
+    protected synchronized void reserve (long serialNumber) throws EncryptionException {
+        if (serialNumber < highWaterMark)
+            return;
+
+        if (serialNumber > Long.MAX_VALUE - batchSize)
+            throw new EncryptionException("Serial numbers exhausted");
+
+        long newHighWaterMark = serialNumber + batchSize;
+        writeHighWaterMark(newHighWaterMark);
+        highWaterMark = newHighWaterMark;
+    }
+
+    protected long readHighWaterMark () throws EncryptionException {
+        if (!Files.exists(file))
+            return 1;
+
+        try {
+            String text = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            long value = Long.parseLong(text);
+            if (value < 1)
+                throw new EncryptionException("Invalid high-water mark in " + file + ": " + value);
+
+            return value;
+        } catch (IOException | NumberFormatException e) {
+            throw new EncryptionException("Exception trying to read " + file, e);
+        }
+    }
+
+    protected void writeHighWaterMark (long value) throws EncryptionException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = null;
+
+        try {
+            temporary = Files.createTempFile(directory, "clcl", ".tmp");
+
+            try (FileChannel fileChannel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                while (byteBuffer.hasRemaining()) {
+                    fileChannel.write(byteBuffer);
+                }
+
+                fileChannel.force(true);
+            }
+
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+
+            forceDirectory(directory);
+        } catch (IOException e) {
+            throw new EncryptionException("Exception trying to write " + file, e);
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // the write already failed; that is the exception the caller needs to see
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush a directory to disk, so that a file that was just renamed into it stays renamed after a crash.
+     * Without this, a power failure could bring back the old high-water mark, and with it serial numbers that
+     * were already used.  Some platforms (Windows) cannot open a directory; there the rename is left to the
+     * file system.
+     */
+    private static void forceDirectory (Path directory) throws IOException {
+        FileChannel fileChannel;
+
+        try {
+            fileChannel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+
+        try {
+            fileChannel.force(true);
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A per-thread cache of crypto engines.
+ *
+ * <p>
+ *     Looking up a provider and creating a {@link Cipher}, {@link KeyGenerator}, {@link SecretKeyFactory},
+ *     {@link Mac}, {@link Signature} or {@link java.security.MessageDigest} is expensive compared to using one.  This class keeps one instance of each engine per thread, keyed
+ *     by algorithm and provider, so that a thread only pays that cost once.
+ * </p>
+ *
+ * <p>
+ *     The engines are not thread-safe, so an engine returned by this class must only be used by the thread
+ *     that asked for it and must not be kept past the current operation.  A {@link Cipher} must be
+ *     initialized (via one of its init methods) every time it is used.
+ * </p>
+ */
+public class CryptoEngines {
+    private static final ThreadLocal<CryptoEngines> threadEngines = new ThreadLocal<CryptoEngines>() {
+        @Override
+        protected CryptoEngines initialValue() {
+            return new CryptoEngines();
+        }
+    };
+
+    private Map<String, Cipher> ciphers = new HashMap<String, Cipher>();
+    private Map<String, KeyGenerator> keyGenerators = new HashMap<String, KeyGenerator>();
+    private Map<String, SecretKeyFactory> secretKeyFactories = new HashMap<String, SecretKeyFactory>();
+    private Map<String, Mac> macs = new HashMap<String, Mac>();
+    private Map<String, java.security.MessageDigest> messageDigests = new HashMap<String, java.security.MessageDigest>();
+    private Map<String, Signature> signatures = new HashMap<String, Signature>();
+
+    public static CryptoEngines getInstance () {
+        return threadEngines.get();
+    }
+
+    public static Cipher getCipher (String transformation) throws GeneralSecurityException {
+        return getCipher(transformation, null);
+    }
+
+    /**
+     * Return this thread's cipher for a transformation and provider.
+     *
+     * @param transformation The transformation, for example "RSA" or "AES/CBC/PKCS5Padding".
+     * @param provider The name of the provider, or null to use the default provider.
+     * @return The cipher.  The caller must initialize it before use.
+     * @throws GeneralSecurityException If the transformation or provider is not available.
+     */
+    public static Cipher getCipher (String transformation, String provider) throws GeneralSecurityException {
+        CryptoEngines engines = getInstance();
+        String key = toKey(transformation, provider);
+        Cipher cipher = engines.ciphers.get(key);
+
+        if (cipher == null) {
+            cipher = provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+            engines.ciphers.put(key, cipher);
+        }
+
+        return cipher;
+    }
+
+    public static KeyGenerator getKeyGenerator (String algorithm) throws GeneralSecurityException {
+        return getKeyGenerator(algorithm, null);
+    }
+
+    public static KeyGenerator getKeyGenerator (String algorithm, String provider) throws GeneralSecurityException {
+        CryptoEngines engines = getInstance();
+        String key = toKey(algorithm, provider);
+        KeyGenerator keyGenerator = engines.keyGenerators.get(key);
+
+        if (keyGenerator == null) {
+            keyGenerator = provider == null ? KeyGenerator.getInstance(algorithm) : KeyGenerator.getInstance(algorithm, provider);
+            engines.keyGenerators.put(key, keyGenerator);
+        }
+
+        return keyGenerator;
+    }
+
+    public static SecretKeyFactory getSecretKeyFactory (String algorithm) throws GeneralSecurityException {
+        return getSecretKeyFactory(algorithm, null);
+    }
+
+    public static SecretKeyFactory getSecretKeyFactory (String algorithm, String provider) throws GeneralSecurityException {
+        CryptoEngines engines = getInstance();
+        String key = toKey(algorithm, provider);
+        SecretKeyFactory secretKeyFactory = engines.secretKeyFactories.get(key);
+
+        if (secretKeyFactory == null) {
+            secretKeyFactory = provider == null ? SecretKeyFactory.getInstance(algorithm)
+                    : SecretKeyFactory.getInstance(algorithm, provider);
+            engines.secretKeyFactories.put(key, secretKeyFactory);
+        }
+
+        return secretKeyFactory;
+    }
+
+    /**
+     * Return this thread's MAC for an algorithm.
+     *
+     * @param algorithm The MAC algorithm, for example "HmacSHA256".
+     * @return The MAC.  The caller must initialize it before use.
+     * @throws GeneralSecurityException If the algorithm is not available.
+     */
+    public static Mac getMac (String algorithm) throws GeneralSecurityException {
+        CryptoEngines engines = getInstance();
+        Mac mac = engines.macs.get(algorithm);
+
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            engines.macs.put(algorithm, mac);
+        }
+
+        return mac;
+    }
+
+    /**
+     * Return this thread's message digest for an algorithm.
+     *
+     * <p>
+     *     The digest is reset before it is returned.
+     * </p>
+     *
+     * @param algorithm The digest algorithm, for example "SHA-256".
+     * @return The message digest.
+     * @throws GeneralSecurityException If the algorithm is not available.
+     */
+    public static java.security.MessageDigest getMessageDigest (String algorithm) throws GeneralSecurityException {
+        CryptoEngines engines = getInstance();
+        java.security.MessageDigest messageDigest = engines.messageDigests.get(algorithm);
+
+        if (messageDigest == null) {
+            messageDigest = java.security.MessageDigest.getInstance(algorithm);
+            engines.messageDigests.put(algorithm, messageDigest);
+        }
+
+        messageDigest.reset();
+        return messageDigest;
+    }
+
+    public static Signature getSignature (String algorithm) throws GeneralSecurityException {
+        return getSignature(algorithm, null);
+    }
+
+    /**
+     * Return this thread's signature engine for an algorithm and provider.
+     *
+     * @param algorithm The signature algorithm, for example "SHA256withRSA".
+     * @param provider The name of the provider, or null to use the default provider.
+     * @return The signature engine.  The caller must initialize it (with initSign or initVerify) before use.
+     * @throws GeneralSecurityException If the algorithm or provider is not available.
+     */
+    public static Signature getSignature (String algorithm, String provider) throws GeneralSecurityException {
+        CryptoEngines engines = getInstance();
+        String key = toKey(algorithm, provider);
+        Signature signature = engines.signatures.get(key);
+
+        if (signature == null) {
+            signature = provider == null ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, provider);
+            engines.signatures.put(key, signature);
+        }
+
+        return signature;
+    }
+
+    /**
+     * Discard the engines cached for the current thread.
+     *
+     * <p>
+     *     Threads from a pool that is being shut down, or short-lived threads that do a lot of crypto,
+     *     can call this to release the engines.
+     * </p>
+     */
+    public static void clear () {
+        threadEngines.remove();
+    }
+
+    private static String toKey (String algorithm, String provider) {
+        return provider == null ? algorithm : algorithm + '@' + provider;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs crypto operations off the caller's thread.
+ *
+ * <p>
+ *     The async methods, such as {@link Key#encryptAsync(byte[])}, {@link Key#decryptAsync(EncryptedMessage)},
+ *     {@link PrivateKey#signAsync(CertificateSigningRequest, java.util.Date, java.util.Date)} and
+ *     {@link KeyPair#newKeysAsync()}, submit their work to one of these.  An instance wraps an
+ *     {@link Executor} and limits how many operations may be waiting or running at once.  When the limit is
+ *     reached, new operations are not queued: the future that is returned fails straight away with a
+ *     {@link RejectedExecutionException}, so an overloaded caller finds out immediately and can shed load
+ *     instead of piling up work.
+ * </p>
+ *
+ * <p>
+ *     Any executor can be used.  For example, on a JVM with virtual threads,
+ *     <code>new CryptoExecutor(Executors.newVirtualThreadPerTaskExecutor(), 10000)</code> runs each operation
+ *     on its own virtual thread while still limiting how many there are.
+ * </p>
+ */
+public class CryptoExecutor {
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private static volatile CryptoExecutor defaultExecutor;
+
+    private final Executor executor;
+    private final int maxPending;
+    private final Semaphore permits;
+
+    /**
+     * Create an executor with its own pool of daemon threads.
+     *
+     * @param threads The number of threads.
+     * @param maxPending The most operations that may be waiting or running at once.
+     */
+    public CryptoExecutor(int threads, int maxPending) {
+        this(createThreadPool(threads), maxPending);
+    }
+
+    /**
+     * Run operations on an existing executor.
+     *
+     * @param executor The executor to run operations on.
+     * @param maxPending The most operations that may be waiting or running at once.
+     */
+    public CryptoExecutor(Executor executor, int maxPending) {
+        if (maxPending <= 0)
+            throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.permits = new Semaphore(maxPending);
+    }
+
+    /**
+     * The executor the async methods use when no other has been set.
+     *
+     * <p>
+     *     Unless {@link #setDefault(CryptoExecutor)} has been called, this has one thread per processor and
+     *     allows {@link #DEFAULT_MAX_PENDING} operations.
+     * </p>
+     */
+    public static CryptoExecutor getDefault() {
+        if (defaultExecutor == null) {
+            synchronized (CryptoExecutor.class) {
+                if (defaultExecutor == null)
+                    defaultExecutor = new CryptoExecutor(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING);
+            }
+        }
+
+        return defaultExecutor;
+    }
+
+    public static void setDefault(CryptoExecutor cryptoExecutor) {
+        defaultExecutor = cryptoExecutor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * The number of operations that are waiting or running.
+     */
+    public int getPending() {
+        return maxPending - permits.availablePermits();
+    }
+
+    /**
+     * Run an operation.
+     *
+     * <p>
+     *     If the operation throws an exception, the future completes exceptionally with that exception.
+     * </p>
+     *
+     * @param callable The operation.
+     * @param <T> The type of the result.
+     * @return A future for the result.  It fails with a {@link RejectedExecutionException} if too many
+     * operations are pending or the executor refuses the operation.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> callable) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        if (!permits.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many pending crypto operations: "
+                    + getMaxPending()));
+            return future;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    T result = null;
+                    Throwable failure = null;
+
+                    try {
+                        result = callable.call();
+                    } catch (Throwable e) {
+                        failure = e;
+                    } finally {
+                        // release first, so that whoever is waiting on the future can submit another operation
+                        permits.release();
+                    }
+
+                    if (failure == null)
+                        future.complete(result);
+                    else
+                        future.completeExceptionally(failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Shut down the executor, if it is an {@link ExecutorService}.
+     */
+    public void shutdown() {
+        if (executor instanceof ExecutorService)
+            ((ExecutorService) executor).shutdown();
+    }
+
+    private static ExecutorService createThreadPool(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "clcl-crypto-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+}
@@ -17,9 +17,19 @@
 
 package com.ltsllc.clcl;
 
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1String;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * An LDAP Distinguished Name.
@@ -84,9 +94,16 @@ public class DistinguishedName {
 
     private String name;
 
+    private volatile String canonicalForm;
+    private boolean frozen;
+
     public DistinguishedName() {
     }
 
+    /**
+     * Create a copy of a name.  The copy can be changed even if the original is
+     * {@link #isFrozen() frozen}.
+     */
     public DistinguishedName (DistinguishedName dn) {
         this.countryCode = dn.getCountryCode();
         this.state = dn.getState();
@@ -94,6 +111,7 @@ public class DistinguishedName {
         this.company = dn.getCompany();
         this.division = dn.getDivision();
         this.name = dn.getName();
+        this.canonicalForm = dn.canonicalForm;
     }
 
     public DistinguishedName (Principal principal) {
@@ -104,16 +122,301 @@ public class DistinguishedName {
         initialize(dn);
     }
 
+    /**
+     * Set the attributes of this name from the string form of a distinguished name.
+     *
+     * <p>
+     *     The string is parsed in one pass according to RFC 4514.  Backslash escapes (including escaped
+     *     UTF-8 bytes such as <code>\C3\A9</code>), values in double quotes (as produced by
+     *     {@link Principal#toString()}), hex values starting with '#' (the BER encoding of the value, as in
+     *     RFC 4514 section 2.4), multi-valued RDNs (joined by '+') and ';' as a separator are all accepted.  Attribute types are matched without regard to case, and may
+     *     be given as names (for example "cn" or "commonName") or as object identifiers ("2.5.4.3").
+     * </p>
+     *
+     * <p>
+     *     Attributes that do not appear in the string are set to null.  If an attribute appears more than
+     *     once, the first value is used.  Attributes that this class does not have, such as an email address,
+     *     are ignored.
+     * </p>
+     *
+     * @param dn The distinguished name, for example "cn=foo.com,ou=Research,o=Long Term Software,c=US".
+     * @throws IllegalArgumentException If the string is not a valid distinguished name, or if one of the
+     *                                  attributes of this class has a hex value that is not a string.
+     */
     public void initialize (String dn) {
-        String fields[] = dn.split(",");
-        List<LDAPName> names = toLDAPNames(fields);
+        setCountryCode(null);
+        setState(null);
+        setCity(null);
+        setCompany(null);
+        setDivision(null);
+        setName(null);
+
+        Parser parser = new Parser(dn);
+        while (parser.hasNext()) {
+            int attribute = parser.nextAttribute();
+            String value = parser.nextValue();
+
+            if (attribute == OTHER)
+                continue;
+
+            if (value == null)
+                throw new IllegalArgumentException("A hex value that is not a string was given for "
+                        + ATTRIBUTE_TYPES[attribute][0] + " in " + dn);
+
+            if (get(attribute) == null)
+                set(attribute, value);
+        }
+    }
+
+    private static final int OTHER = -1;
+    private static final int COUNTRY_CODE = 0;
+    private static final int STATE = 1;
+    private static final int CITY = 2;
+    private static final int COMPANY = 3;
+    private static final int DIVISION = 4;
+    private static final int NAME = 5;
+
+    /**
+     * The attribute types that are recognized, indexed by attribute.
+     */
+    private static final String[][] ATTRIBUTE_TYPES = {
+            { "c", "countryName", "2.5.4.6" },
+            { "st", "s", "stateOrProvinceName", "2.5.4.8" },
+            { "l", "localityName", "2.5.4.7" },
+            { "o", "organizationName", "2.5.4.10" },
+            { "ou", "organizationalUnitName", "2.5.4.11" },
+            { "cn", "commonName", "2.5.4.3" }
+    };
+
+    private String get (int attribute) {
+        switch (attribute) {
+            case COUNTRY_CODE: return getCountryCode();
+            case STATE: return getState();
+            case CITY: return getCity();
+            case COMPANY: return getCompany();
+            case DIVISION: return getDivision();
+            default: return getName();
+        }
+    }
+
+    private void set (int attribute, String value) {
+        switch (attribute) {
+            case COUNTRY_CODE: setCountryCode(value); break;
+            case STATE: setState(value); break;
+            case CITY: setCity(value); break;
+            case COMPANY: setCompany(value); break;
+            case DIVISION: setDivision(value); break;
+            default: setName(value); break;
+        }
+    }
+
+    /**
+     * Reads the attribute types and values of a distinguished name, one after the other.
+     */
+    private static class Parser {
+        private final String dn;
+        private final int length;
+        private final StringBuilder value = new StringBuilder();
+        private int index;
+
+        public Parser (String dn) {
+            this.dn = dn;
+            this.length = dn.length();
+            this.index = skipSpaces(0);
+        }
+
+        public boolean hasNext () {
+            return index < length;
+        }
+
+        /**
+         * Read an attribute type and the '=' after it.
+         */
+        public int nextAttribute () {
+            int start = index;
+
+            while (index < length && dn.charAt(index) != '=') {
+                if (isSeparator(dn.charAt(index)))
+                    throw new IllegalArgumentException("Missing '=' at position " + index + " in " + dn);
+
+                index++;
+            }
+
+            if (index >= length)
+                throw new IllegalArgumentException("Missing '=' in " + dn);
+
+            int end = index;
+            while (end > start && dn.charAt(end - 1) == ' ') {
+                end--;
+            }
+
+            index = skipSpaces(index + 1);
+            return toAttribute(start, end);
+        }
+
+        /**
+         * Read a value and the separator after it, if there is one.
+         *
+         * @return The value, or null if it is a hex value whose BER encoding is not a string type.
+         */
+        public String nextValue () {
+            value.setLength(0);
+            String result;
+
+            if (index < length && dn.charAt(index) == '"') {
+                readQuoted();
+                result = value.toString();
+            } else if (index < length && dn.charAt(index) == '#') {
+                result = readHex();
+            } else {
+                readUnquoted();
+                result = value.toString();
+            }
+
+            if (index < length) {
+                if (!isSeparator(dn.charAt(index)))
+                    throw new IllegalArgumentException("Unexpected '" + dn.charAt(index) + "' at position " + index
+                            + " in " + dn);
+
+                index = skipSpaces(index + 1);
+            }
+
+            return result;
+        }
+
+        /**
+         * Read a '#' and the hex pairs after it, and decode them as the BER encoding of a string.
+         *
+         * @return The string, or null if the encoding is of something other than a string.
+         */
+        private String readHex () {
+            int start = ++index;
+
+            while (isHexPair(index)) {
+                index += 2;
+            }
+
+            if (index == start || (index < length && dn.charAt(index) != ' ' && !isSeparator(dn.charAt(index))))
+                throw new IllegalArgumentException("Invalid hex value at position " + start + " in " + dn);
+
+            byte[] bytes = new byte[(index - start) / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (Character.digit(dn.charAt(start + 2 * i), 16) * 16
+                        + Character.digit(dn.charAt(start + 2 * i + 1), 16));
+            }
+
+            index = skipSpaces(index);
+
+            try {
+                ASN1Primitive primitive = ASN1Primitive.fromByteArray(bytes);
+                return primitive instanceof ASN1String ? ((ASN1String) primitive).getString() : null;
+            } catch (IOException | RuntimeException e) {
+                throw new IllegalArgumentException("Invalid BER encoding at position " + start + " in " + dn, e);
+            }
+        }
+
+        private void readQuoted () {
+            index++;
+
+            while (index < length && dn.charAt(index) != '"') {
+                if (dn.charAt(index) == '\\') {
+                    readEscape();
+                } else {
+                    value.append(dn.charAt(index));
+                    index++;
+                }
+            }
+
+            if (index >= length)
+                throw new IllegalArgumentException("Unterminated quote in " + dn);
+
+            index = skipSpaces(index + 1);
+        }
+
+        private void readUnquoted () {
+            int significant = 0;
+
+            while (index < length && !isSeparator(dn.charAt(index))) {
+                char c = dn.charAt(index);
+
+                if (c == '\\') {
+                    readEscape();
+                    significant = value.length();
+                } else {
+                    value.append(c);
+                    index++;
+
+                    if (c != ' ')
+                        significant = value.length();
+                }
+            }
+
+            // unescaped trailing spaces are not part of the value
+            value.setLength(significant);
+        }
+
+        /**
+         * Read a backslash and what it escapes: either a single character or a run of hex pairs, which are
+         * the UTF-8 encoding of the characters.
+         */
+        private void readEscape () {
+            index++;
+            if (index >= length)
+                throw new IllegalArgumentException("Dangling '\\' at the end of " + dn);
+
+            if (!isHexPair(index)) {
+                value.append(dn.charAt(index));
+                index++;
+                return;
+            }
+
+            int count = 1;
+            while (index + 3 * count + 1 < length && dn.charAt(index + 3 * count - 1) == '\\'
+                    && isHexPair(index + 3 * count)) {
+                count++;
+            }
+
+            byte[] bytes = new byte[count];
+            for (int i = 0; i < count; i++) {
+                int position = index + 3 * i;
+                bytes[i] = (byte) (Character.digit(dn.charAt(position), 16) * 16
+                        + Character.digit(dn.charAt(position + 1), 16));
+            }
+
+            value.append(new String(bytes, StandardCharsets.UTF_8));
+            index += 3 * count - 1;
+        }
+
+        private boolean isHexPair (int position) {
+            return position + 1 < length && Character.digit(dn.charAt(position), 16) != -1
+                    && Character.digit(dn.charAt(position + 1), 16) != -1;
+        }
+
+        private int toAttribute (int start, int end) {
+            if (end - start > 4 && dn.regionMatches(true, start, "oid.", 0, 4))
+                start += 4;
+
+            for (int attribute = 0; attribute < ATTRIBUTE_TYPES.length; attribute++) {
+                for (String type : ATTRIBUTE_TYPES[attribute]) {
+                    if (type.length() == end - start && dn.regionMatches(true, start, type, 0, type.length()))
+                        return attribute;
+                }
+            }
+
+            return OTHER;
+        }
+
+        private int skipSpaces (int position) {
+            while (position < length && dn.charAt(position) == ' ') {
+                position++;
+            }
 
-        setCountryCode(findCountryCode(names));
-        setState(findState(names));
-        setCity(findCity(names));
-        setCompany(findCompany(names));
-        setDivision(findDivision(names));
-        setName(findName(names));
+            return position;
+        }
+
+        private static boolean isSeparator (char c) {
+            return c == ',' || c == ';' || c == '+';
+        }
     }
 
     public static List<LDAPName> toLDAPNames (String[] names) {
@@ -164,7 +467,9 @@ public class DistinguishedName {
     }
 
     public void setName(String name) {
+        checkNotFrozen();
         this.name = name;
+        this.canonicalForm = null;
     }
 
     public String getDivision() {
@@ -172,7 +477,9 @@ public class DistinguishedName {
     }
 
     public void setDivision(String division) {
+        checkNotFrozen();
         this.division = division;
+        this.canonicalForm = null;
     }
 
     public String getCompany() {
@@ -181,7 +488,9 @@ public class DistinguishedName {
     }
 
     public void setCompany(String company) {
+        checkNotFrozen();
         this.company = company;
+        this.canonicalForm = null;
     }
 
     public String getCity() {
@@ -190,7 +499,9 @@ public class DistinguishedName {
     }
 
     public void setCity(String city) {
+        checkNotFrozen();
         this.city = city;
+        this.canonicalForm = null;
     }
 
     public String getState() {
@@ -199,7 +510,9 @@ public class DistinguishedName {
     }
 
     public void setState(String state) {
+        checkNotFrozen();
         this.state = state;
+        this.canonicalForm = null;
     }
 
     public String getCountryCode() {
@@ -208,56 +521,235 @@ public class DistinguishedName {
     }
 
     public void setCountryCode(String countryCode) {
+        checkNotFrozen();
         this.countryCode = countryCode;
+        this.canonicalForm = null;
     }
 
     /**
      * Create a string, suitable for use as an {@link sun.security.x509.X500Name}
      * for the object.
      *
+     * <p>
+     *     Attributes that are missing (null) are left out, so the string parses back to an equal name.
+     * </p>
+     *
      * @return The string described above.
      */
     public String toString () {
         StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("c=");
-        stringBuilder.append(getCountryCode());
-        stringBuilder.append(",st=");
-        stringBuilder.append(getState());
-        stringBuilder.append(",l=");
-        stringBuilder.append(getCity());
-        stringBuilder.append(",o=");
-        stringBuilder.append(getCompany());
-        stringBuilder.append(",ou=");
-        stringBuilder.append(getDivision());
-        stringBuilder.append(",cn=");
-        stringBuilder.append(getName());
+        appendAttribute(stringBuilder, "c", getCountryCode());
+        appendAttribute(stringBuilder, "st", getState());
+        appendAttribute(stringBuilder, "l", getCity());
+        appendAttribute(stringBuilder, "o", getCompany());
+        appendAttribute(stringBuilder, "ou", getDivision());
+        appendAttribute(stringBuilder, "cn", getName());
 
         return stringBuilder.toString();
     }
 
+    private static void appendAttribute (StringBuilder stringBuilder, String type, String value) {
+        if (value == null)
+            return;
+
+        if (stringBuilder.length() > 0)
+            stringBuilder.append(',');
+
+        stringBuilder.append(type);
+        stringBuilder.append('=');
+        appendEscaped(stringBuilder, value);
+    }
+
+    /**
+     * Append a value, escaping the characters that RFC 4514 requires to be escaped.
+     */
+    public static void appendEscaped (StringBuilder stringBuilder, String value) {
+        if (value == null) {
+            stringBuilder.append(value);
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case ',':
+                case '+':
+                case '"':
+                case '\\':
+                case '<':
+                case '>':
+                case ';':
+                case '=':
+                    stringBuilder.append('\\');
+                    break;
+
+                case '#':
+                    if (i == 0)
+                        stringBuilder.append('\\');
+                    break;
+
+                case ' ':
+                    if (i == 0 || i == value.length() - 1)
+                        stringBuilder.append('\\');
+                    break;
+            }
+
+            stringBuilder.append(c);
+        }
+    }
+
+    /**
+     * Two names are equal if they have the same {@link #getCanonicalForm() canonical form}.
+     */
     public boolean equals (Object o) {
+        if (o == this)
+            return true;
+
         if (null == o || !(o instanceof DistinguishedName))
             return false;
 
         DistinguishedName other = (DistinguishedName) o;
-        if (!getCountryCode().equals(other.getCountryCode()))
-            return false;
+        return getCanonicalForm().equals(other.getCanonicalForm());
+    }
 
-        if (!getState().equals(other.getState()))
-            return false;
+    public int hashCode () {
+        return getCanonicalForm().hashCode();
+    }
 
-        if (!getCity().equals(other.getCity()))
-            return false;
+    /**
+     * A form of this name that is the same for all names that match under the X.520 rules.
+     *
+     * <p>
+     *     All the attributes of this class are matched with caseIgnoreMatch: each value is put into Unicode
+     *     compatibility form (NFKC), leading and trailing spaces are dropped, runs of spaces become one space
+     *     and the result is folded to lower case.  The canonical form is computed once and kept until one of
+     *     the attributes is changed.  {@link String#hashCode()} caches its value as well, so after the first
+     *     call {@link #hashCode()} is cheap.
+     * </p>
+     */
+    public String getCanonicalForm () {
+        String result = canonicalForm;
+
+        if (result == null) {
+            StringBuilder stringBuilder = new StringBuilder();
+            appendCanonical(stringBuilder, "c", getCountryCode());
+            appendCanonical(stringBuilder, ",st", getState());
+            appendCanonical(stringBuilder, ",l", getCity());
+            appendCanonical(stringBuilder, ",o", getCompany());
+            appendCanonical(stringBuilder, ",ou", getDivision());
+            appendCanonical(stringBuilder, ",cn", getName());
+
+            result = stringBuilder.toString();
+            canonicalForm = result;
+        }
 
-        if (!getCompany().equals(other.getCompany()))
-            return false;
+        return result;
+    }
 
-        if (!getDivision().equals(other.getDivision()))
-            return false;
+    /**
+     * Append one attribute of the canonical form.
+     *
+     * <p>
+     *     A missing attribute is written as the type without an '=', which no value can produce, so a missing
+     *     attribute never matches one with the value "null" or an empty value.
+     * </p>
+     */
+    private static void appendCanonical (StringBuilder stringBuilder, String type, String value) {
+        stringBuilder.append(type);
 
-        if (!getName().equals(other.getName()))
-            return false;
+        if (value != null) {
+            stringBuilder.append('=');
+            appendEscaped(stringBuilder, canonicalize(value));
+        }
+    }
+
+    /**
+     * Apply the X.520 caseIgnoreMatch preparation to a value.
+     *
+     * @return The prepared value, or null if the value is null.
+     */
+    public static String canonicalize (String value) {
+        if (value == null)
+            return null;
+
+        String normalized = Normalizer.normalize(value, Normalizer.Form.NFKC);
+        StringBuilder stringBuilder = new StringBuilder(normalized.length());
+        boolean space = false;
+
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = stringBuilder.length() > 0;
+            } else {
+                if (space)
+                    stringBuilder.append(' ');
+
+                stringBuilder.append(c);
+                space = false;
+            }
+        }
+
+        return stringBuilder.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static final Map<DistinguishedName, WeakReference<DistinguishedName>> pool =
+            new WeakHashMap<DistinguishedName, WeakReference<DistinguishedName>>();
+
+    /**
+     * Return the one shared instance that is equal to this name.
+     *
+     * <p>
+     *     Like {@link String#intern()}, this lets names that are repeated many times, such as the issuer of
+     *     every certificate in a trust store, share one object and be compared with ==.  The pool only holds
+     *     weak references, so a name that is no longer used anywhere else can still be garbage collected.
+     * </p>
+     *
+     * <p>
+     *     The shared instance is {@link #isFrozen() frozen}, so that no one can change it under the others.
+     *     Unless this name is already frozen, the instance that is returned is a frozen copy of it, and this
+     *     name can still be changed.
+     * </p>
+     *
+     * @return The shared instance.
+     */
+    public DistinguishedName intern () {
+        synchronized (pool) {
+            WeakReference<DistinguishedName> reference = pool.get(this);
+            DistinguishedName interned = reference == null ? null : reference.get();
+
+            if (interned == null) {
+                if (isFrozen()) {
+                    interned = this;
+                } else {
+                    interned = new DistinguishedName(this);
+                    interned.getCanonicalForm();
+                    interned.frozen = true;
+                }
+
+                pool.put(interned, new WeakReference<DistinguishedName>(interned));
+            }
+
+            return interned;
+        }
+    }
+
+    /**
+     * Can this name no longer be changed?
+     *
+     * <p>
+     *     The names returned by {@link #intern()} are frozen: their setters throw
+     *     {@link UnsupportedOperationException}.  Use {@link #DistinguishedName(DistinguishedName)} to get a
+     *     copy that can be changed.
+     * </p>
+     */
+    public boolean isFrozen () {
+        return frozen;
+    }
 
-        return true;
+    private void checkNotFrozen () {
+        if (frozen)
+            throw new UnsupportedOperationException("This name is shared and cannot be changed: " + this);
     }
 }
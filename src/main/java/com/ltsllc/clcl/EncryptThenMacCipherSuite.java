@@ -0,0 +1,196 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A {@link CipherSuite} that encrypts with an unauthenticated cipher and then appends a MAC.
+ *
+ * <p>
+ *     The session key is the cipher key followed by the MAC key.  The MAC covers the initialization vector
+ *     and the cipher text, and is checked (in constant time) before anything is decrypted.
+ * </p>
+ */
+public class EncryptThenMacCipherSuite extends CipherSuite {
+    public static final String KEY_ALGORITHM = "EncryptThenMac";
+
+    private String transformation;
+    private String cipherKeyAlgorithm;
+    private int cipherKeyLength;
+    private String macAlgorithm;
+    private int macKeyLength;
+
+    public EncryptThenMacCipherSuite (String id, String transformation, String cipherKeyAlgorithm,
+                                      int cipherKeyLength, String macAlgorithm, int macKeyLength) {
+        super(id);
+
+        this.transformation = transformation;
+        this.cipherKeyAlgorithm = cipherKeyAlgorithm;
+        this.cipherKeyLength = cipherKeyLength;
+        this.macAlgorithm = macAlgorithm;
+        this.macKeyLength = macKeyLength;
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    public String getMacAlgorithm() {
+        return macAlgorithm;
+    }
+
+    @Override
+    public int getKeyLength() {
+        return cipherKeyLength + macKeyLength;
+    }
+
+    @Override
+    public int getIvLength() {
+        return 16;
+    }
+
+    @Override
+    public SecretKey toSecretKey(byte[] encoded) {
+        return toSecretKey(encoded, KEY_ALGORITHM);
+    }
+
+    public SecretKey getCipherKey (SecretKey sessionKey) {
+        return new SecretKeySpec(sessionKey.getEncoded(), 0, cipherKeyLength, cipherKeyAlgorithm);
+    }
+
+    public SecretKey getMacKey (SecretKey sessionKey) {
+        return new SecretKeySpec(sessionKey.getEncoded(), cipherKeyLength, macKeyLength, getMacAlgorithm());
+    }
+
+    @Override
+    public byte[] encrypt(SecretKey sessionKey, byte[] iv, byte[] plainText) throws GeneralSecurityException {
+        Cipher cipher = CryptoEngines.getCipher(getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, getCipherKey(sessionKey), new IvParameterSpec(iv));
+
+        Mac mac = CryptoEngines.getMac(getMacAlgorithm());
+        mac.init(getMacKey(sessionKey));
+
+        byte[] cipherText = new byte[cipher.getOutputSize(plainText.length) + mac.getMacLength()];
+        int length = cipher.doFinal(plainText, 0, plainText.length, cipherText, 0);
+
+        mac.update(iv);
+        mac.update(cipherText, 0, length);
+        mac.doFinal(cipherText, length);
+
+        return length + mac.getMacLength() == cipherText.length ? cipherText
+                : Arrays.copyOf(cipherText, length + mac.getMacLength());
+    }
+
+    @Override
+    public byte[] decrypt(SecretKey sessionKey, byte[] iv, byte[] cipherText) throws GeneralSecurityException {
+        Mac mac = CryptoEngines.getMac(getMacAlgorithm());
+        mac.init(getMacKey(sessionKey));
+
+        int length = cipherText.length - mac.getMacLength();
+        if (length < 0)
+            throw new AEADBadTagException("Message is too short");
+
+        mac.update(iv);
+        mac.update(cipherText, 0, length);
+        byte[] expected = mac.doFinal();
+        byte[] actual = Arrays.copyOfRange(cipherText, length, cipherText.length);
+
+        if (!MessageDigest.isEqual(expected, actual))
+            throw new AEADBadTagException("MAC check failed");
+
+        Cipher cipher = CryptoEngines.getCipher(getTransformation());
+        cipher.init(Cipher.DECRYPT_MODE, getCipherKey(sessionKey), new IvParameterSpec(iv));
+        return cipher.doFinal(cipherText, 0, length);
+    }
+
+    @Override
+    public int encrypt(SecretKey sessionKey, byte[] iv, ByteBuffer plainText, ByteBuffer cipherText)
+            throws GeneralSecurityException {
+        Cipher cipher = CryptoEngines.getCipher(getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, getCipherKey(sessionKey), new IvParameterSpec(iv));
+
+        Mac mac = CryptoEngines.getMac(getMacAlgorithm());
+        mac.init(getMacKey(sessionKey));
+
+        int needed = cipher.getOutputSize(plainText.remaining()) + mac.getMacLength();
+        if (needed > cipherText.remaining())
+            throw new ShortBufferException("Need " + needed + " bytes, have " + cipherText.remaining());
+
+        ByteBuffer written = cipherText.duplicate();
+        int length = cipher.doFinal(plainText, cipherText);
+        written.limit(written.position() + length);
+
+        mac.update(iv);
+        mac.update(written);
+        cipherText.put(mac.doFinal());
+
+        return length + mac.getMacLength();
+    }
+
+    @Override
+    public int decrypt(SecretKey sessionKey, byte[] iv, ByteBuffer cipherText, ByteBuffer plainText)
+            throws GeneralSecurityException {
+        Mac mac = CryptoEngines.getMac(getMacAlgorithm());
+        mac.init(getMacKey(sessionKey));
+
+        int length = cipherText.remaining() - mac.getMacLength();
+        if (length < 0)
+            throw new AEADBadTagException("Message is too short");
+
+        ByteBuffer message = cipherText.duplicate();
+        message.limit(message.position() + length);
+
+        mac.update(iv);
+        mac.update(message.duplicate());
+        byte[] expected = mac.doFinal();
+        byte[] actual = new byte[mac.getMacLength()];
+        ByteBuffer tag = cipherText.duplicate();
+        tag.position(message.limit());
+        tag.get(actual);
+
+        if (!MessageDigest.isEqual(expected, actual))
+            throw new AEADBadTagException("MAC check failed");
+
+        Cipher cipher = CryptoEngines.getCipher(getTransformation());
+        cipher.init(Cipher.DECRYPT_MODE, getCipherKey(sessionKey), new IvParameterSpec(iv));
+        int written = cipher.doFinal(message, plainText);
+        cipherText.position(cipherText.limit());
+
+        return written;
+    }
+
+    /**
+     * This suite cannot be streamed: the MAC has to be checked before any plain text is released.
+     */
+    @Override
+    public Cipher createCipher(int mode, SecretKey sessionKey, byte[] iv) throws GeneralSecurityException {
+        throw new NoSuchAlgorithmException(getId() + " cannot be used as a single Cipher");
+    }
+}
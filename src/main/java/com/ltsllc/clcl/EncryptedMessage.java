@@ -17,36 +17,101 @@
 
 package com.ltsllc.clcl;
 
+import com.ltsllc.commons.util.HexConverter;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
- * Created by Clark on 6/2/2017.
+ * A message that has been encrypted with a session key, along with the session key encrypted with a
+ * {@link Key}.
+ *
+ * <p>
+ *     The encrypted session key, initialization vector and cipher text are kept as raw bytes.
+ *     The hexadecimal forms returned by {@link #getKey()} and {@link #getMessage()} are there for
+ *     compatibility with older code.
+ * </p>
+ *
+ * <h3>Binary Format</h3>
+ * <p>
+ *     {@link #writeTo(OutputStream)} and {@link #writeTo(ByteBuffer)} write the message as follows;
+ *     all integers are big-endian.
+ * </p>
+ * <table border="1">
+ *     <tr><th>Field</th><th>Size</th></tr>
+ *     <tr><td>version ({@link #VERSION})</td><td>1 byte</td></tr>
+ *     <tr><td>length of the algorithm</td><td>2 bytes</td></tr>
+ *     <tr><td>algorithm, in UTF-8</td><td>variable</td></tr>
+ *     <tr><td>length of the encrypted session key</td><td>4 bytes</td></tr>
+ *     <tr><td>encrypted session key</td><td>variable</td></tr>
+ *     <tr><td>length of the initialization vector</td><td>1 byte</td></tr>
+ *     <tr><td>initialization vector</td><td>variable</td></tr>
+ *     <tr><td>length of the cipher text</td><td>4 bytes</td></tr>
+ *     <tr><td>cipher text</td><td>variable</td></tr>
+ * </table>
  */
 public class EncryptedMessage {
+    public static final int VERSION = 1;
+    public static final int MAX_IV_LENGTH = 255;
+
+    /**
+     * The longest cipher text that {@link #readFrom(InputStream)} accepts: the largest array the JVM can
+     * allocate.  Use {@link #readFrom(InputStream, int)} to accept less.
+     */
+    public static final int MAX_MESSAGE_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * When reading from a stream, cipher text longer than this is read in pieces of this size, and the buffer
+     * grows as the data arrives, so that a length field cannot make the reader allocate memory for data that
+     * is never sent.
+     */
+    public static final int READ_CHUNK_SIZE = 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
     private String algorithm;
-    private String key;
-    private String message;
+    private byte[] keyBytes;
+    private byte[] iv;
+    private byte[] messageBytes;
 
     public EncryptedMessage() {}
 
     public EncryptedMessage(String algorithm, String key, String message) {
         this.algorithm = algorithm;
-        this.key = key;
-        this.message = message;
+        setKey(key);
+        setMessage(message);
+    }
+
+    public EncryptedMessage(String algorithm, byte[] keyBytes, byte[] iv, byte[] messageBytes) {
+        this.algorithm = algorithm;
+        this.keyBytes = keyBytes;
+        this.iv = iv;
+        this.messageBytes = messageBytes;
     }
 
+    /**
+     * The cipher text as a hexadecimal string.
+     */
     public String getMessage() {
-        return message;
+        return toHexString(messageBytes);
     }
 
     public void setMessage(String message) {
-        this.message = message;
+        this.messageBytes = toByteArray(message);
     }
 
+    /**
+     * The encrypted session key as a hexadecimal string.
+     */
     public void setKey(String key) {
-        this.key = key;
+        this.keyBytes = toByteArray(key);
     }
 
     public String getKey() {
-        return key;
+        return toHexString(keyBytes);
     }
 
     public String getAlgorithm() {
@@ -56,4 +121,336 @@ public class EncryptedMessage {
     public void setAlgorithm(String algorithm) {
         this.algorithm = algorithm;
     }
+
+    public byte[] getKeyBytes() {
+        return keyBytes;
+    }
+
+    public void setKeyBytes(byte[] keyBytes) {
+        this.keyBytes = keyBytes;
+    }
+
+    /**
+     * The initialization vector for the cipher text, or null if the algorithm does not use one.
+     */
+    public byte[] getIv() {
+        return iv;
+    }
+
+    public void setIv(byte[] iv) {
+        this.iv = iv;
+    }
+
+    public byte[] getMessageBytes() {
+        return messageBytes;
+    }
+
+    public void setMessageBytes(byte[] messageBytes) {
+        this.messageBytes = messageBytes;
+    }
+
+    /**
+     * The number of bytes that {@link #writeTo(OutputStream)} will write.
+     */
+    public int getEncodedLength() {
+        return 1 + 2 + algorithmBytes().length + 4 + nonNull(keyBytes).length + 1 + nonNull(iv).length
+                + 4 + nonNull(messageBytes).length;
+    }
+
+    /**
+     * The number of bytes that {@link #writeHeaderTo(ByteBuffer)} will write.
+     */
+    public int getHeaderLength() {
+        return getEncodedLength() - 4 - nonNull(messageBytes).length;
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        byte[] algorithmBytes = algorithmBytes();
+        byte[] ivBytes = checkIv();
+
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeByte(VERSION);
+        dataOutputStream.writeShort(algorithmBytes.length);
+        dataOutputStream.write(algorithmBytes);
+        dataOutputStream.writeInt(nonNull(keyBytes).length);
+        dataOutputStream.write(nonNull(keyBytes));
+        dataOutputStream.writeByte(ivBytes.length);
+        dataOutputStream.write(ivBytes);
+        dataOutputStream.writeInt(nonNull(messageBytes).length);
+        dataOutputStream.write(nonNull(messageBytes));
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Write the message into a buffer.
+     *
+     * @param byteBuffer The buffer to write to.  It must have at least {@link #getEncodedLength()} bytes
+     *                   remaining.
+     * @throws IOException If the message cannot be encoded.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    public void writeTo(ByteBuffer byteBuffer) throws IOException {
+        writeHeaderTo(byteBuffer);
+        byteBuffer.putInt(nonNull(messageBytes).length);
+        byteBuffer.put(nonNull(messageBytes));
+    }
+
+    /**
+     * Write everything up to, but not including, the length of the cipher text.
+     *
+     * <p>
+     *     This is for callers such as {@link Key#encrypt(String, ByteBuffer, ByteBuffer)} that write the
+     *     cipher text themselves.
+     * </p>
+     *
+     * @param byteBuffer The buffer to write to.
+     * @throws IOException If the message cannot be encoded.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    public void writeHeaderTo(ByteBuffer byteBuffer) throws IOException {
+        byteBuffer.put((byte) VERSION);
+        writeHeaderBody(byteBuffer);
+    }
+
+    /**
+     * Write the header without the version.
+     */
+    void writeHeaderBody(ByteBuffer byteBuffer) throws IOException {
+        byte[] algorithmBytes = algorithmBytes();
+        byte[] ivBytes = checkIv();
+
+        byteBuffer.putShort((short) algorithmBytes.length);
+        byteBuffer.put(algorithmBytes);
+        byteBuffer.putInt(nonNull(keyBytes).length);
+        byteBuffer.put(nonNull(keyBytes));
+        byteBuffer.put((byte) ivBytes.length);
+        byteBuffer.put(ivBytes);
+    }
+
+    public byte[] toByteArray() throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(getEncodedLength());
+        writeTo(byteBuffer);
+        return byteBuffer.array();
+    }
+
+    /**
+     * Read a message from a stream.
+     *
+     * <p>
+     *     A {@link MultiRecipientMessage} or {@link SegmentedMessage} is returned if that is what the stream
+     *     contains.
+     * </p>
+     *
+     * @param inputStream The stream to read from.
+     * @return The message.
+     * @throws IOException If the stream does not contain a valid message.
+     */
+    public static EncryptedMessage readFrom(InputStream inputStream) throws IOException {
+        return readFrom(inputStream, MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Read a message from a stream, rejecting cipher text longer than a maximum.
+     *
+     * <p>
+     *     Use this when the stream comes from someone who is not trusted, so that a message cannot claim
+     *     more memory than the caller is willing to give it.
+     * </p>
+     *
+     * @param inputStream The stream to read from.
+     * @param maxMessageLength The longest cipher text to accept, in bytes.
+     * @return The message.
+     * @throws IOException If the stream does not contain a valid message, or the cipher text is too long.
+     */
+    public static EncryptedMessage readFrom(InputStream inputStream, int maxMessageLength) throws IOException {
+        if (maxMessageLength < 0 || maxMessageLength > MAX_MESSAGE_LENGTH)
+            throw new IllegalArgumentException("Invalid maximum message length: " + maxMessageLength);
+
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        int version = dataInputStream.readUnsignedByte();
+        if (version == MultiRecipientMessage.VERSION)
+            return MultiRecipientMessage.readAfterVersion(dataInputStream, maxMessageLength);
+        else if (version == SegmentedMessage.VERSION)
+            return SegmentedMessage.readAfterVersion(dataInputStream, maxMessageLength);
+
+        checkVersion(version);
+        return readBody(dataInputStream, maxMessageLength);
+    }
+
+    /**
+     * Read a message, without the version, from a stream.
+     */
+    static EncryptedMessage readBody(DataInputStream dataInputStream, int maxMessageLength) throws IOException {
+        byte[] algorithmBytes = new byte[dataInputStream.readUnsignedShort()];
+        dataInputStream.readFully(algorithmBytes);
+
+        byte[] keyBytes = new byte[checkLength(dataInputStream.readInt(), Key.MAX_SESSION_KEY_LENGTH)];
+        dataInputStream.readFully(keyBytes);
+
+        byte[] iv = new byte[dataInputStream.readUnsignedByte()];
+        dataInputStream.readFully(iv);
+
+        byte[] messageBytes = readBytes(dataInputStream, checkLength(dataInputStream.readInt(), maxMessageLength));
+
+        return new EncryptedMessage(new String(algorithmBytes, StandardCharsets.UTF_8), keyBytes,
+                iv.length == 0 ? null : iv, messageBytes);
+    }
+
+    /**
+     * Read a message from a buffer.
+     *
+     * <p>
+     *     On success, the position of the buffer is just past the end of the message.
+     *     A {@link MultiRecipientMessage} or {@link SegmentedMessage} is returned if that is what the buffer
+     *     contains.
+     * </p>
+     *
+     * @param byteBuffer The buffer to read from.
+     * @return The message.
+     * @throws IOException If the buffer does not contain a valid message.
+     */
+    public static EncryptedMessage readFrom(ByteBuffer byteBuffer) throws IOException {
+        int version = byteBuffer.hasRemaining() ? byteBuffer.get(byteBuffer.position()) & 0xFF : -1;
+        if (version == MultiRecipientMessage.VERSION)
+            return MultiRecipientMessage.readFrom(byteBuffer);
+        else if (version == SegmentedMessage.VERSION)
+            return SegmentedMessage.readFrom(byteBuffer);
+
+        EncryptedMessage encryptedMessage = readHeaderFrom(byteBuffer);
+
+        try {
+            byte[] messageBytes = new byte[readMessageLength(byteBuffer)];
+            byteBuffer.get(messageBytes);
+            encryptedMessage.setMessageBytes(messageBytes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted message", e);
+        }
+
+        return encryptedMessage;
+    }
+
+    /**
+     * Read everything up to, but not including, the length of the cipher text.
+     *
+     * <p>
+     *     The message that is returned has no cipher text.  On success, the buffer is positioned at the
+     *     length of the cipher text; see {@link #readMessageLength(ByteBuffer)}.
+     * </p>
+     *
+     * @param byteBuffer The buffer to read from.
+     * @return The message, without its cipher text.
+     * @throws IOException If the buffer does not contain a valid header.
+     */
+    public static EncryptedMessage readHeaderFrom(ByteBuffer byteBuffer) throws IOException {
+        try {
+            checkVersion(byteBuffer.get() & 0xFF);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted message", e);
+        }
+
+        return readHeaderBody(byteBuffer);
+    }
+
+    /**
+     * Read a header, without the version, from a buffer.
+     */
+    static EncryptedMessage readHeaderBody(ByteBuffer byteBuffer) throws IOException {
+        try {
+            byte[] algorithmBytes = new byte[checkLength(byteBuffer.getShort() & 0xFFFF, byteBuffer.remaining())];
+            byteBuffer.get(algorithmBytes);
+
+            int keyLength = checkLength(byteBuffer.getInt(), Math.min(byteBuffer.remaining(), Key.MAX_SESSION_KEY_LENGTH));
+            byte[] keyBytes = new byte[keyLength];
+            byteBuffer.get(keyBytes);
+
+            byte[] iv = new byte[checkLength(byteBuffer.get() & 0xFF, byteBuffer.remaining())];
+            byteBuffer.get(iv);
+
+            return new EncryptedMessage(new String(algorithmBytes, StandardCharsets.UTF_8), keyBytes,
+                    iv.length == 0 ? null : iv, null);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted message", e);
+        }
+    }
+
+    /**
+     * Read the length of the cipher text that follows a header.
+     *
+     * @param byteBuffer The buffer, positioned just after the header.
+     * @return The length of the cipher text, which is no more than the bytes remaining in the buffer.
+     * @throws IOException If the length is invalid or the buffer is truncated.
+     */
+    public static int readMessageLength(ByteBuffer byteBuffer) throws IOException {
+        try {
+            return checkLength(byteBuffer.getInt(), byteBuffer.remaining());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted message", e);
+        }
+    }
+
+    public static EncryptedMessage fromByteArray(byte[] bytes) throws IOException {
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
+
+    byte[] algorithmBytes() {
+        return algorithm == null ? EMPTY : algorithm.getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] checkIv() throws IOException {
+        byte[] ivBytes = nonNull(iv);
+        if (ivBytes.length > MAX_IV_LENGTH)
+            throw new IOException("Initialization vector is too long: " + ivBytes.length);
+
+        return ivBytes;
+    }
+
+    private static void checkVersion(int version) throws IOException {
+        if (version != VERSION)
+            throw new IOException("Unsupported encrypted message version: " + version);
+    }
+
+    static int checkLength(int length, int maximum) throws IOException {
+        if (length < 0 || length > maximum)
+            throw new IOException("Invalid length in encrypted message: " + length);
+
+        return length;
+    }
+
+    /**
+     * Read a length that came from the stream itself, without trusting it for more than
+     * {@link #READ_CHUNK_SIZE} bytes at a time.
+     */
+    static byte[] readBytes(DataInputStream dataInputStream, int length) throws IOException {
+        byte[] bytes = new byte[Math.min(length, READ_CHUNK_SIZE)];
+        int read = 0;
+
+        while (read < length) {
+            if (read == bytes.length)
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+
+            int count = dataInputStream.read(bytes, read, bytes.length - read);
+            if (count < 0)
+                throw new EOFException("Truncated encrypted message");
+
+            read += count;
+        }
+
+        return bytes;
+    }
+
+    static byte[] nonNull(byte[] bytes) {
+        return bytes == null ? EMPTY : bytes;
+    }
+
+    private static String toHexString(byte[] bytes) {
+        return bytes == null ? null : HexConverter.toHexString(bytes);
+    }
+
+    private static byte[] toByteArray(String hexString) {
+        try {
+            return hexString == null ? null : HexConverter.toByteArray(hexString);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid hexadecimal string", e);
+        }
+    }
 }
@@ -17,9 +17,22 @@
 
 package com.ltsllc.clcl;
 
+import com.ltsllc.commons.util.HexConverter;
 import com.ltsllc.commons.util.Utils;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -27,6 +40,14 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Java key store.
@@ -35,6 +56,19 @@ import java.util.*;
  * This class makes bridging the gap from clcl to java.security a little easier.
  * </p>
  *
+ * <p>
+ * An instance can be shared between threads.  The maps of keys, certificates and chains are concurrent
+ * maps, so readers such as {@link #getCertificate(String)} and {@link #getKeyPair(String)} never wait for
+ * a writer; each addition becomes visible as a whole, and {@link #load()} reads the file into new maps and
+ * then swaps them all in at once.  Writers that touch the underlying {@link KeyStore} or the file take the
+ * instance's lock; readers do not, even when they decrypt a lazily loaded key.
+ * </p>
+ *
+ * <p>
+ * {@link #startWatching()} makes the instance reload itself when another process replaces the file; see
+ * {@link #reload()}.
+ * </p>
+ *
  * <h3>Attributes</h3>
  * <table border="1">
  * <tr>
@@ -67,14 +101,82 @@ import java.util.*;
  * <td>String</td>
  * <td>The password for the JKS file.</td>
  * </tr>
+ * <tr>
+ * <td>jsKeyStore</td>
+ * <td>java.security.KeyStore</td>
+ * <td>A {@link KeyStore} with the same entries as this instance; see {@link #getJsKeyStore()}.</td>
+ * </tr>
+ * <tr>
+ * <td>lazy</td>
+ * <td>boolean</td>
+ * <td>If true, {@link #load()} does not decrypt the private keys; see {@link #setLazy(boolean)}.</td>
+ * </tr>
+ * <tr>
+ * <td>maxCachedKeys</td>
+ * <td>int</td>
+ * <td>In lazy mode, the most decrypted key pairs that are kept.</td>
+ * </tr>
  * </table>
  */
 public class JavaKeyStore {
+    public static final int DEFAULT_MAX_CACHED_KEYS = 1024;
+    public static final String FILE_DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * How long the watcher waits after the file changes before reloading it, in milliseconds.  This gives
+     * the process that is writing the file time to finish, and folds the events from one write into one
+     * reload.
+     */
+    public static final long RELOAD_SETTLE_TIME = 100;
+
     private String filename;
-    private Map<String, Certificate[]> certificateChains;
-    private Map<String, KeyPair> keys;
-    private Map<String, Certificate> certificates;
-    private String passwordString;
+    private volatile Map<String, Certificate[]> certificateChains;
+    private volatile Map<String, KeyPair> keys;
+    private volatile Map<String, Certificate> certificates;
+    private volatile String passwordString;
+
+    private boolean lazy;
+    private int maxCachedKeys = DEFAULT_MAX_CACHED_KEYS;
+    private volatile KeyStore jsKeyStore;
+    private Set<String> pendingAliases = new LinkedHashSet<String>();
+    private boolean rebuild;
+
+    private boolean dirty;
+    private String storedFilename;
+    private long writeBehindDelay;
+    private ScheduledFuture<?> scheduledStore;
+    private volatile EncryptionException lastStoreException;
+
+    private static final ScheduledExecutorService writeBehindExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "JavaKeyStore write-behind");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private volatile String fileDigest;
+    private WatchService watchService;
+    private Thread watcher;
+    private volatile EncryptionException lastReloadException;
+    private final List<JavaKeyStoreListener> listeners = new CopyOnWriteArrayList<JavaKeyStoreListener>();
+
+    private volatile Set<String> lazyAliases = createAliasSet();
+
+    /**
+     * Guards keyCache.  This is not the instance's lock, so looking up a lazily loaded key does not wait for
+     * {@link #store()} or {@link #sync()}.
+     */
+    private final Object keyCacheLock = new Object();
+    private Map<String, KeyPair> keyCache = createKeyCache();
+
+    /**
+     * Odd while the lazily loaded keys are being replaced or protected with a new password, and changed
+     * before and after each time.  A reader that fails to decrypt a key uses this to tell whether it raced
+     * with such a change, in which case it tries again.
+     */
+    private volatile long generation;
 
 
     public static KeyStore loadKeyStore(String filename, String passwordString) throws IOException, GeneralSecurityException {
@@ -84,9 +186,19 @@ public class JavaKeyStore {
         return keyStore;
     }
 
+    /**
+     * Return a {@link KeyStore} with the same entries as this instance.
+     *
+     * <p>
+     *     The instance keeps this key store up to date as entries are added, so this method does not write
+     *     or read the file.  Entries added since the last call are copied into it first, protected with
+     *     the current password.  The key store is shared with the instance: callers should not change it,
+     *     and should call this method again rather than keep it across calls to
+     *     {@link #add(String, KeyPair, Certificate[])}.
+     * </p>
+     */
     public KeyStore getJsKeyStore() throws EncryptionException, GeneralSecurityException, IOException {
-        store();
-        return loadKeyStore(filename, passwordString);
+        return sync();
     }
 
     public void setJsKeyStore(KeyStore jsKeyStore) {
@@ -104,9 +216,9 @@ public class JavaKeyStore {
      * Create an empty instance
      */
     public JavaKeyStore() {
-        this.certificateChains = new HashMap<String, Certificate[]>();
-        this.certificates = new HashMap<String, Certificate>();
-        this.keys = new HashMap<String, KeyPair>();
+        this.certificateChains = new ConcurrentHashMap<String, Certificate[]>();
+        this.certificates = new ConcurrentHashMap<String, Certificate>();
+        this.keys = new ConcurrentHashMap<String, KeyPair>();
     }
 
     /**
@@ -127,6 +239,17 @@ public class JavaKeyStore {
         initialize(filename, password);
     }
 
+    /**
+     * Create an instance and initialize it from a JKS file, possibly without decrypting its keys.
+     *
+     * @param lazy If true, each private key is only decrypted when it is first asked for.
+     * @see #setLazy(boolean)
+     */
+    public JavaKeyStore(String filename, String password, boolean lazy) throws EncryptionException {
+        this.lazy = lazy;
+        initialize(filename, password);
+    }
+
     public JavaKeyStore (KeyStore keyStore) {
     }
     /**
@@ -143,36 +266,175 @@ public class JavaKeyStore {
      */
     public void initialize(String filename, String password) throws EncryptionException {
         this.filename = filename;
-        this.certificates = new HashMap<String, Certificate>();
-        this.certificateChains = new HashMap<String, Certificate[]>();
-        this.keys = new HashMap<String, KeyPair>();
+        this.certificates = new ConcurrentHashMap<String, Certificate>();
+        this.certificateChains = new ConcurrentHashMap<String, Certificate[]>();
+        this.keys = new ConcurrentHashMap<String, KeyPair>();
         this.passwordString = password;
 
         load();
     }
 
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Should {@link #load()} leave the private keys encrypted?
+     *
+     * <p>
+     *     Decrypting a private key in a key store is slow, so a key store with many keys takes a long time
+     *     to load when only a few of them will be used.  In lazy mode, loading only reads the aliases and the
+     *     certificates; a private key is decrypted the first time {@link #getKeyPair(String)} asks for it,
+     *     and the result is kept in a cache of up to {@link #getMaxCachedKeys()} key pairs (the least
+     *     recently used are dropped first).  {@link #getKeys()} only contains the key pairs that were
+     *     added with {@link #add(String, KeyPair, Certificate[])}.
+     * </p>
+     *
+     * <p>
+     *     This only affects the next call to {@link #load()}.
+     * </p>
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public int getMaxCachedKeys() {
+        return maxCachedKeys;
+    }
+
+    public void setMaxCachedKeys(int maxCachedKeys) {
+        if (maxCachedKeys < 1)
+            throw new IllegalArgumentException("maxCachedKeys must be positive");
+
+        this.maxCachedKeys = maxCachedKeys;
+    }
+
+    /**
+     * The number of decrypted key pairs in the lazy mode cache.
+     */
+    public int getCachedKeyCount() {
+        synchronized (keyCacheLock) {
+            return keyCache.size();
+        }
+    }
+
+    /**
+     * The aliases of all the key pairs, whether or not they have been decrypted.
+     */
+    public Set<String> getKeyAliases() {
+        Set<String> aliases = new HashSet<String>(lazyAliases);
+        aliases.addAll(getKeys().keySet());
+        return aliases;
+    }
+
+    private static Set<String> createAliasSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Return a concurrent map with the same entries as the supplied map.
+     *
+     * <p>
+     *     A map that is already concurrent is used as is, so callers that pass one keep sharing it with the
+     *     instance.
+     * </p>
+     */
+    private static <V> Map<String, V> toConcurrentMap(Map<String, V> map) {
+        if (map instanceof ConcurrentMap)
+            return map;
+
+        Map<String, V> concurrentMap = new ConcurrentHashMap<String, V>();
+        if (map != null)
+            concurrentMap.putAll(map);
+
+        return concurrentMap;
+    }
+
+    // the cache is never serialized
+    @SuppressWarnings("serial")
+    private Map<String, KeyPair> createKeyCache() {
+        return new LinkedHashMap<String, KeyPair>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, KeyPair> eldest) {
+                return size() > maxCachedKeys;
+            }
+        };
+    }
+
     public Map<String, KeyPair> getKeys() {
         return keys;
     }
 
-    public void setKeys(Map<String, KeyPair> keys) {
-        this.keys = keys;
+    /**
+     * Replace the key pairs.
+     *
+     * <p>
+     *     Unless the map is a {@link ConcurrentMap}, it is copied so that it can be read by several threads.
+     * </p>
+     */
+    public synchronized void setKeys(Map<String, KeyPair> keys) {
+        this.keys = toConcurrentMap(keys);
+        this.rebuild = true;
+        this.dirty = true;
     }
 
     public String getPasswordString() {
         return passwordString;
     }
 
-    public void setPasswordString(String passwordString) {
-        this.passwordString = passwordString;
+    /**
+     * Change the password.
+     *
+     * <p>
+     *     The password protects the file and every key in it, so the keys that are already in
+     *     {@link #getJsKeyStore()} are decrypted with the old password and protected again with the new one.
+     * </p>
+     *
+     * @throws EncryptionException If the keys cannot be protected with the new password.
+     */
+    public synchronized void setPasswordString(String passwordString) throws EncryptionException {
+        if (jsKeyStore == null || passwordString == null || passwordString.equals(this.passwordString)) {
+            this.dirty = this.dirty || !Objects.equals(passwordString, this.passwordString);
+            this.passwordString = passwordString;
+            return;
+        }
+
+        generation++;
+
+        try {
+            Map<String, KeyPair> keyPairs = new HashMap<String, KeyPair>();
+            Enumeration<String> enumeration = jsKeyStore.aliases();
+
+            while (enumeration.hasMoreElements()) {
+                String alias = enumeration.nextElement();
+
+                if (jsKeyStore.isKeyEntry(alias) && !pendingAliases.contains(alias))
+                    keyPairs.put(alias, getKeyPair(alias));
+            }
+
+            this.passwordString = passwordString;
+            this.dirty = true;
+
+            for (Map.Entry<String, KeyPair> entry : keyPairs.entrySet()) {
+                addKeysToKeystore(jsKeyStore, entry.getKey(), entry.getValue(), getCertificateChain(entry.getKey()));
+            }
+        } catch (KeyStoreException e) {
+            throw new EncryptionException("Exception trying to change password", e);
+        } finally {
+            generation++;
+        }
     }
 
-    public void setCertificates(Map<String, Certificate> certificates) {
-        this.certificates = certificates;
+    public synchronized void setCertificates(Map<String, Certificate> certificates) {
+        this.certificates = toConcurrentMap(certificates);
+        this.rebuild = true;
+        this.dirty = true;
     }
 
-    public void setCertificateChains(Map<String, Certificate[]> certificateChains) {
-        this.certificateChains = certificateChains;
+    public synchronized void setCertificateChains(Map<String, Certificate[]> certificateChains) {
+        this.certificateChains = toConcurrentMap(certificateChains);
+        this.rebuild = true;
+        this.dirty = true;
     }
 
     public Map<String, Certificate[]> getCertificateChains() {
@@ -196,8 +458,6 @@ public class JavaKeyStore {
      * @param certificateChain The certificate chain for the key pair.
      */
     public void add(String alias, KeyPair keyPair, Certificate[] certificateChain) throws EncryptionException {
-        getKeys().put(alias, keyPair);
-
         if (certificateChain == null) {
             CertificateSigningRequest csr = keyPair.createCertificateSigningRequest();
 
@@ -212,12 +472,32 @@ public class JavaKeyStore {
             certificateChain = new Certificate[]{certificate};
         }
 
+        getKeys().put(alias, keyPair);
         getCertificateChains().put(alias, certificateChain);
+
+        synchronized (this) {
+            lazyAliases.remove(alias);
+            pendingAliases.add(alias);
+            dirty = true;
+        }
+
+        synchronized (keyCacheLock) {
+            keyCache.remove(alias);
+        }
+
+        scheduleStore();
     }
 
 
     public void add(String alias, Certificate certificate) {
         getCertificates().put(alias, certificate);
+
+        synchronized (this) {
+            pendingAliases.add(alias);
+            dirty = true;
+        }
+
+        scheduleStore();
     }
 
     public Certificate[] getCertificateChain(String alias) {
@@ -251,27 +531,225 @@ public class JavaKeyStore {
 
             addKeysToKeystore(keyStore, alias, keyPair, chain);
         }
+
+        //
+        // in lazy mode, keys that have not been used yet have to be decrypted to be copied
+        //
+        for (String alias : getKeyAliases()) {
+            if (!getKeys().containsKey(alias))
+                addKeysToKeystore(keyStore, alias, getKeyPair(alias), getCertificateChain(alias));
+        }
+    }
+
+    /**
+     * Bring {@link #getJsKeyStore()} up to date with the entries of this instance.
+     *
+     * <p>
+     *     Normally this only copies the entries added since the last time.  If one of the maps was replaced
+     *     (with {@link #setKeys(Map)} for example), the key store is updated in place: the entries that are no
+     *     longer in the maps are removed and those in the new maps are copied.  Keys that were loaded lazily
+     *     and never used are left as they are, so they do not have to be decrypted.
+     * </p>
+     *
+     * @return The key store.
+     */
+    protected synchronized KeyStore sync() throws EncryptionException {
+        try {
+            if (jsKeyStore == null) {
+                KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+                keyStore.load(null, null);
+                jsKeyStore = keyStore;
+                rebuild = true;
+            }
+
+            if (rebuild) {
+                for (String alias : Collections.list(jsKeyStore.aliases())) {
+                    boolean keep = jsKeyStore.isKeyEntry(alias)
+                            ? getKeys().containsKey(alias) || lazyAliases.contains(alias)
+                            : getCertificates().containsKey(alias);
+
+                    if (!keep)
+                        jsKeyStore.deleteEntry(alias);
+                }
+
+                pendingAliases.addAll(getKeys().keySet());
+                pendingAliases.addAll(getCertificates().keySet());
+                rebuild = false;
+            }
+
+            for (String alias : pendingAliases) {
+                KeyPair keyPair = getKeys().get(alias);
+                Certificate certificate = getCertificates().get(alias);
+
+                if (keyPair != null) {
+                    Certificate[] chain = getCertificateChain(alias);
+                    if (chain == null || chain.length < 1)
+                        chain = new Certificate[]{keyPair.createCertificate()};
+
+                    addKeysToKeystore(jsKeyStore, alias, keyPair, chain);
+                } else if (certificate != null && !jsKeyStore.isKeyEntry(alias)) {
+                    jsKeyStore.setCertificateEntry(alias, certificate.getCertificate());
+                }
+            }
+
+            pendingAliases.clear();
+            return jsKeyStore;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to update keystore", e);
+        }
     }
 
     /**
      * This method will store the instance in a JKS file determined by the filename attribute.
      *
+     * <p>
+     *     If nothing has changed since the instance was last loaded from or stored to the file, this
+     *     does nothing.  Otherwise the key store is written to a temporary file in the same directory,
+     *     flushed to disk, and then renamed over the file, so a crash part way through leaves either the old
+     *     file or the new one, never a mix.  The directory is flushed after the rename, so once this returns the
+     *     new file survives a crash.
+     * </p>
+     *
      * @throws EncryptionException If there is a problem storing the instance.
      */
-    public void store() throws EncryptionException {
-        FileOutputStream fileOutputStream = null;
+    public synchronized void store() throws EncryptionException {
+        cancelScheduledStore();
+
+        if (!dirty && filename.equals(storedFilename) && exists())
+            return;
+
+        Path file = Paths.get(filename);
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = null;
 
         try {
-            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            keyStore.load(null, null);
-            addKeysToKeystore(keyStore);
-            addCertificatesToKeystore(keyStore, getCertificates());
-            fileOutputStream = new FileOutputStream(filename);
-            keyStore.store(fileOutputStream, getPasswordString().toCharArray());
+            KeyStore keyStore = sync();
+            temporary = Files.createTempFile(directory, "clcl", ".tmp");
+
+            java.security.MessageDigest messageDigest = CryptoEngines.getMessageDigest(FILE_DIGEST_ALGORITHM);
+
+            try (FileOutputStream fileOutputStream = new FileOutputStream(temporary.toFile())) {
+                keyStore.store(new DigestOutputStream(fileOutputStream, messageDigest),
+                        getPasswordString().toCharArray());
+                fileOutputStream.getFD().sync();
+            }
+
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+            forceDirectory(directory);
+
+            dirty = false;
+            storedFilename = filename;
+            fileDigest = HexConverter.toHexString(messageDigest.digest());
+            lastStoreException = null;
         } catch (IOException | GeneralSecurityException e) {
             throw new EncryptionException("Exception trying to write keystore", e);
         } finally {
-            Utils.closeIgnoreExceptions(fileOutputStream);
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // the store already failed; that is the exception the caller needs to see
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush a directory to disk, so that a file that was just renamed into it stays renamed after a crash.
+     * Some platforms (Windows) cannot open a directory; there the rename is left to the file system.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        FileChannel fileChannel;
+
+        try {
+            fileChannel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+
+        try {
+            fileChannel.force(true);
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Have there been changes since the instance was last loaded or stored?
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    public long getWriteBehindDelay() {
+        return writeBehindDelay;
+    }
+
+    /**
+     * Store the instance automatically some time after it changes.
+     *
+     * <p>
+     *     When this is positive, adding an entry schedules a {@link #store()} that many milliseconds later,
+     *     unless one is already scheduled.  A burst of additions is therefore written to the file once, at
+     *     the end of the delay, instead of once per addition.  {@link #flush()} writes any pending changes
+     *     immediately.  A failed background store is recorded in {@link #getLastStoreException()} and the
+     *     changes stay pending, so the next store tries again.
+     * </p>
+     *
+     * @param writeBehindDelay The delay in milliseconds, or 0 (the default) to only store when
+     *                         {@link #store()} is called.
+     */
+    public synchronized void setWriteBehindDelay(long writeBehindDelay) {
+        if (writeBehindDelay < 0)
+            throw new IllegalArgumentException("writeBehindDelay must not be negative");
+
+        this.writeBehindDelay = writeBehindDelay;
+        if (writeBehindDelay == 0)
+            cancelScheduledStore();
+    }
+
+    /**
+     * The exception from the last background store, or null if it succeeded.
+     */
+    public EncryptionException getLastStoreException() {
+        return lastStoreException;
+    }
+
+    /**
+     * Write any pending changes now.
+     */
+    public synchronized void flush() throws EncryptionException {
+        if (dirty)
+            store();
+        else
+            cancelScheduledStore();
+    }
+
+    protected synchronized void scheduleStore() {
+        if (writeBehindDelay <= 0 || scheduledStore != null)
+            return;
+
+        scheduledStore = writeBehindExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (JavaKeyStore.this) {
+                    scheduledStore = null;
+
+                    try {
+                        flush();
+                    } catch (EncryptionException e) {
+                        lastStoreException = e;
+                    }
+                }
+            }
+        }, writeBehindDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelScheduledStore() {
+        if (scheduledStore != null) {
+            scheduledStore.cancel(false);
+            scheduledStore = null;
         }
     }
 
@@ -292,6 +770,13 @@ public class JavaKeyStore {
     public static void addCertificatesToKeystore(KeyStore keyStore, Map<String, Certificate> certificates)
             throws KeyStoreException {
         for (String alias : certificates.keySet()) {
+            //
+            // loading a keystore also puts the certificates of the key entries here; those are already in
+            // the keystore as part of the key entry, and the keystore will not overwrite them
+            //
+            if (keyStore.isKeyEntry(alias))
+                continue;
+
             Certificate certificate = certificates.get(alias);
             keyStore.setCertificateEntry(alias, certificate.getCertificate());
         }
@@ -314,17 +799,39 @@ public class JavaKeyStore {
         return newChain;
     }
 
+    /**
+     * Return the public key for an alias.
+     *
+     * <p>
+     *     In lazy mode, this comes from the alias's certificate, so the private key is not decrypted.
+     * </p>
+     */
     public PublicKey getPublicKey(String alias) {
         KeyPair keyPair = getKeys().get(alias);
 
-        if (keyPair == null)
+        if (keyPair != null)
+            return keyPair.getPublicKey();
+
+        Certificate[] chain = getCertificateChain(alias);
+        if (chain == null || chain.length < 1 || !isLazyAlias(alias))
             return null;
 
-        return keyPair.getPublicKey();
+        return new PublicKey(chain[0].getCertificate().getPublicKey());
+    }
+
+    private boolean isLazyAlias(String alias) {
+        return lazyAliases.contains(alias);
     }
 
     /**
-     * @throws EncryptionException
+     * Replace the contents of the instance with the contents of the file.
+     *
+     * <p>
+     *     The file is read into new maps first, and these are swapped in all together, so a reader never
+     *     sees some entries from the file and some from before.
+     * </p>
+     *
+     * @throws EncryptionException If the file does not exist or cannot be read.
      */
     public void load() throws EncryptionException {
         File file = new File(filename);
@@ -332,20 +839,303 @@ public class JavaKeyStore {
             throw new EncryptionException("The file, " + filename + ", does not exist");
         }
 
-        FileInputStream fileInputStream = null;
-
         try {
-            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            fileInputStream = new FileInputStream(file);
-            keyStore.load(fileInputStream, getPasswordString().toCharArray());
-            extract(keyStore);
+            byte[] contents = Files.readAllBytes(file.toPath());
+            KeyStore keyStore = toKeyStore(contents, getPasswordString());
+            JavaKeyStore loaded = read(keyStore);
+
+            synchronized (this) {
+                replaceContents(loaded, keyStore, digest(contents));
+            }
         } catch (GeneralSecurityException | IOException e) {
             throw new EncryptionException("Exception trying to load keystore, " + filename, e);
+        }
+    }
+
+    /**
+     * Read a key store into a new instance, decrypting its keys unless this instance is lazy.
+     */
+    private JavaKeyStore read(KeyStore keyStore) throws EncryptionException {
+        JavaKeyStore loaded = new JavaKeyStore();
+        loaded.passwordString = getPasswordString();
+
+        if (isLazy())
+            loaded.index(keyStore);
+        else
+            loaded.extract(keyStore);
+
+        return loaded;
+    }
+
+    /**
+     * Swap in the contents of an instance created by {@link #read(KeyStore)}.  The caller must hold the
+     * instance's lock.
+     *
+     * <p>
+     *     The key store is published before the lazy aliases, so a reader that sees a new alias also sees
+     *     the key store that contains it.
+     * </p>
+     */
+    private void replaceContents(JavaKeyStore loaded, KeyStore keyStore, String digest) {
+        generation++;
+
+        try {
+            this.keys = loaded.keys;
+            this.certificates = loaded.certificates;
+            this.certificateChains = loaded.certificateChains;
+            this.jsKeyStore = keyStore;
+            this.lazyAliases = loaded.lazyAliases;
+
+            synchronized (keyCacheLock) {
+                this.keyCache = createKeyCache();
+            }
+
+            this.pendingAliases.clear();
+            this.rebuild = false;
+            this.dirty = false;
+            this.storedFilename = filename;
+            this.fileDigest = digest;
         } finally {
-            Utils.closeIgnoreExceptions(fileInputStream);
+            generation++;
+        }
+    }
+
+    private static KeyStore toKeyStore(byte[] contents, String password) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(new ByteArrayInputStream(contents), password.toCharArray());
+        return keyStore;
+    }
+
+    private static String digest(byte[] contents) throws GeneralSecurityException {
+        java.security.MessageDigest messageDigest = CryptoEngines.getMessageDigest(FILE_DIGEST_ALGORITHM);
+        return HexConverter.toHexString(messageDigest.digest(contents));
+    }
+
+    /**
+     * Read the file again and replace the contents of the instance with it.
+     *
+     * <p>
+     *     The file is read and decrypted into new maps first, without holding the instance's lock, so readers
+     *     keep seeing the old contents until the new ones are swapped in.  If the file cannot be read (for
+     *     example because it is only partly written) the old contents are kept.  Changes that were not stored
+     *     are lost: the file wins.
+     * </p>
+     *
+     * <p>
+     *     If the file is byte for byte what was last loaded or stored, nothing is done.  Otherwise the
+     *     listeners are told which aliases were added, removed or changed, if any were.
+     * </p>
+     *
+     * @return The difference between the old and new contents.  This is empty if nothing was reloaded.
+     * @throws EncryptionException If the file cannot be read.
+     */
+    public JavaKeyStoreChange reload() throws EncryptionException {
+        JavaKeyStoreChange change;
+
+        try {
+            byte[] contents = Files.readAllBytes(Paths.get(filename));
+            String digest = digest(contents);
+
+            if (digest.equals(fileDigest)) {
+                Set<String> none = Collections.emptySet();
+                return new JavaKeyStoreChange(this, none, none, none);
+            }
+
+            KeyStore keyStore = toKeyStore(contents, getPasswordString());
+            JavaKeyStore loaded = read(keyStore);
+            Map<String, String> newFingerprints = loaded.getFingerprints();
+
+            synchronized (this) {
+                Map<String, String> oldFingerprints = getFingerprints();
+                replaceContents(loaded, keyStore, digest);
+                this.lastReloadException = null;
+
+                change = diff(oldFingerprints, newFingerprints);
+            }
+        } catch (GeneralSecurityException | IOException e) {
+            throw new EncryptionException("Exception trying to reload keystore, " + filename, e);
+        }
+
+        if (!change.isEmpty())
+            fireKeyStoreChanged(change);
+
+        return change;
+    }
+
+    /**
+     * Return a map from every alias to the fingerprint of its certificate (the first certificate of its
+     * chain, for a key).
+     */
+    private Map<String, String> getFingerprints() throws EncryptionException {
+        Map<String, String> fingerprints = new HashMap<String, String>();
+
+        for (Map.Entry<String, Certificate> entry : getCertificates().entrySet()) {
+            fingerprints.put(entry.getKey(), entry.getValue().getFingerprint());
+        }
+
+        for (Map.Entry<String, Certificate[]> entry : getCertificateChains().entrySet()) {
+            if (entry.getValue().length > 0)
+                fingerprints.put(entry.getKey(), entry.getValue()[0].getFingerprint());
+        }
+
+        for (String alias : getKeyAliases()) {
+            if (!fingerprints.containsKey(alias))
+                fingerprints.put(alias, "");
+        }
+
+        return fingerprints;
+    }
+
+    private JavaKeyStoreChange diff(Map<String, String> oldFingerprints, Map<String, String> newFingerprints) {
+        Set<String> added = new HashSet<String>();
+        Set<String> removed = new HashSet<String>();
+        Set<String> changed = new HashSet<String>();
+
+        for (Map.Entry<String, String> entry : newFingerprints.entrySet()) {
+            String oldFingerprint = oldFingerprints.get(entry.getKey());
+
+            if (oldFingerprint == null)
+                added.add(entry.getKey());
+            else if (!oldFingerprint.equals(entry.getValue()))
+                changed.add(entry.getKey());
+        }
+
+        for (String alias : oldFingerprints.keySet()) {
+            if (!newFingerprints.containsKey(alias))
+                removed.add(alias);
+        }
+
+        return new JavaKeyStoreChange(this, added, removed, changed);
+    }
+
+    public void addListener(JavaKeyStoreListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(JavaKeyStoreListener listener) {
+        listeners.remove(listener);
+    }
+
+    protected void fireKeyStoreChanged(JavaKeyStoreChange change) {
+        for (JavaKeyStoreListener listener : listeners) {
+            try {
+                listener.keyStoreChanged(change);
+            } catch (RuntimeException e) {
+                // one broken listener should not keep the others from hearing about the change
+            }
         }
     }
 
+    /**
+     * The exception from the last reload the watcher tried, or null if it succeeded.
+     */
+    public EncryptionException getLastReloadException() {
+        return lastReloadException;
+    }
+
+    public synchronized boolean isWatching() {
+        return watcher != null;
+    }
+
+    /**
+     * Watch the file, and {@link #reload()} the instance when it changes.
+     *
+     * <p>
+     *     The watching is done by a daemon thread with a {@link WatchService} on the file's directory.
+     *     When the file is created, replaced or written, the thread waits {@link #RELOAD_SETTLE_TIME} and
+     *     then reloads it.  A failed reload is recorded in {@link #getLastReloadException()} and the old
+     *     contents are kept until the next change.  Stores made by this instance do not cause a reload.
+     *     Calling this when the instance is already watching does nothing.
+     * </p>
+     *
+     * @throws EncryptionException If the directory cannot be watched.
+     */
+    public synchronized void startWatching() throws EncryptionException {
+        if (watcher != null)
+            return;
+
+        final Path file = Paths.get(filename).toAbsolutePath();
+
+        try {
+            final WatchService watchService = file.getFileSystem().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watch(watchService, file);
+                }
+            }, "JavaKeyStore watcher, " + filename);
+            thread.setDaemon(true);
+
+            this.watchService = watchService;
+            this.watcher = thread;
+            thread.start();
+        } catch (IOException e) {
+            throw new EncryptionException("Exception trying to watch " + filename, e);
+        }
+    }
+
+    /**
+     * Stop watching the file.  This does nothing if the instance is not watching it.
+     */
+    public synchronized void stopWatching() {
+        if (watcher == null)
+            return;
+
+        watcher.interrupt();
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // the watcher has been told to stop either way
+        }
+
+        watcher = null;
+        watchService = null;
+    }
+
+    protected void watch(WatchService watchService, Path file) {
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+
+                if (!isChange(watchKey, file))
+                    continue;
+
+                Thread.sleep(RELOAD_SETTLE_TIME);
+
+                //
+                // the writer may have caused several events; they are all covered by one reload
+                //
+                for (watchKey = watchService.poll(); watchKey != null; watchKey = watchService.poll()) {
+                    isChange(watchKey, file);
+                }
+
+                try {
+                    reload();
+                } catch (EncryptionException e) {
+                    lastReloadException = e;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopWatching was called
+        }
+    }
+
+    private static boolean isChange(WatchKey watchKey, Path file) {
+        boolean change = false;
+
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context()))
+                change = true;
+        }
+
+        watchKey.reset();
+        return change;
+    }
+
     public static KeyStore loadJsKeyStore(String filename, String password) throws EncryptionException {
         File file = new File(filename);
         if (!file.exists()) {
@@ -371,6 +1161,38 @@ public class JavaKeyStore {
         extractCertificates(keyStore);
     }
 
+    /**
+     * Read the aliases and certificates from a key store without decrypting any of its keys.
+     *
+     * @see #setLazy(boolean)
+     */
+    public void index(KeyStore keyStore) throws EncryptionException {
+        try {
+            Set<String> aliases = createAliasSet();
+            Enumeration<String> enumeration = keyStore.aliases();
+
+            while (enumeration.hasMoreElements()) {
+                String alias = enumeration.nextElement();
+
+                if (keyStore.isKeyEntry(alias))
+                    aliases.add(alias);
+            }
+
+            extractChains(keyStore);
+            extractCertificates(keyStore);
+
+            synchronized (this) {
+                this.lazyAliases = aliases;
+
+                synchronized (keyCacheLock) {
+                    this.keyCache = createKeyCache();
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to index keystore", e);
+        }
+    }
+
     public void extractKeys(KeyStore keyStore) throws EncryptionException {
         try {
             Enumeration<String> enumeration = keyStore.aliases();
@@ -405,13 +1227,92 @@ public class JavaKeyStore {
         }
     }
 
-    public KeyPair getKeyPair(String alias) {
-        return getKeys().get(alias);
+    /**
+     * Return the key pair for an alias, or null if there is no such key pair.
+     *
+     * <p>
+     *     In lazy mode, this decrypts the private key the first time the alias is asked for.  This never
+     *     takes the instance's lock, so it does not wait for {@link #store()} or other writers, and the
+     *     decryption is not done under any lock.  If two threads ask for the same key at once, both decrypt
+     *     it and the first result is kept.
+     * </p>
+     *
+     * @throws EncryptionException If the private key cannot be decrypted.
+     */
+    public KeyPair getKeyPair(String alias) throws EncryptionException {
+        KeyPair keyPair = getKeys().get(alias);
+
+        if (keyPair != null)
+            return keyPair;
+
+        while (true) {
+            long startGeneration = generation;
+
+            if (!lazyAliases.contains(alias))
+                return getKeys().get(alias);
+
+            synchronized (keyCacheLock) {
+                keyPair = keyCache.get(alias);
+            }
+
+            if (keyPair != null)
+                return keyPair;
+
+            KeyStore keyStore = jsKeyStore;
+            String password = passwordString;
+
+            try {
+                keyPair = decryptKeyPair(keyStore, password, alias);
+            } catch (EncryptionException e) {
+                //
+                // the keys may have been reloaded, or the password changed, while the key was being decrypted
+                //
+                if (startGeneration % 2 == 0 && startGeneration == generation)
+                    throw e;
+
+                Thread.yield();
+                continue;
+            }
+
+            synchronized (keyCacheLock) {
+                KeyPair other = keyCache.get(alias);
+                if (other != null)
+                    return other;
+
+                //
+                // a key decrypted from a key store that has since been replaced must not go into the new cache
+                //
+                if (startGeneration % 2 == 0 && startGeneration == generation && lazyAliases.contains(alias))
+                    keyCache.put(alias, keyPair);
+
+                return keyPair;
+            }
+        }
+    }
+
+    protected KeyPair decryptKeyPair(String alias) throws EncryptionException {
+        return decryptKeyPair(jsKeyStore, getPasswordString(), alias);
+    }
+
+    protected static KeyPair decryptKeyPair(KeyStore keyStore, String password, String alias)
+            throws EncryptionException {
+        try {
+            java.security.PrivateKey jsPrivateKey = (java.security.PrivateKey) keyStore.getKey(alias,
+                    password.toCharArray());
+            java.security.cert.Certificate jsCertificate = keyStore.getCertificate(alias);
+
+            if (jsPrivateKey == null || jsCertificate == null)
+                throw new EncryptionException("No key for alias, " + alias);
+
+            return new KeyPair(new PublicKey(jsCertificate.getPublicKey()), new PrivateKey(jsPrivateKey));
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to decrypt key, " + alias, e);
+        }
     }
 
     public void extractCertificates(KeyStore keyStore) throws EncryptionException {
         try {
-            Map<String, Certificate> map = new HashMap<String, Certificate>();
+            Map<String, Certificate> map = new ConcurrentHashMap<String, Certificate>();
 
             Enumeration<String> enumeration = keyStore.aliases();
             while (enumeration.hasMoreElements()) {
@@ -431,7 +1332,7 @@ public class JavaKeyStore {
 
     public void extractChains(KeyStore keyStore) throws EncryptionException {
         try {
-            Map<String, Certificate[]> map = new HashMap<String, Certificate[]>();
+            Map<String, Certificate[]> map = new ConcurrentHashMap<String, Certificate[]>();
 
             Enumeration<String> enumeration = keyStore.aliases();
             while (enumeration.hasMoreElements()) {
@@ -0,0 +1,68 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The difference between the old and new contents of a {@link JavaKeyStore} after it was reloaded.
+ *
+ * <p>
+ *     An alias counts as changed when the certificate for it (the first certificate of the chain, for a key)
+ *     is different.
+ * </p>
+ */
+public class JavaKeyStoreChange {
+    private JavaKeyStore javaKeyStore;
+    private Set<String> added;
+    private Set<String> removed;
+    private Set<String> changed;
+
+    public JavaKeyStoreChange (JavaKeyStore javaKeyStore, Set<String> added, Set<String> removed,
+                               Set<String> changed) {
+        this.javaKeyStore = javaKeyStore;
+        this.added = Collections.unmodifiableSet(added);
+        this.removed = Collections.unmodifiableSet(removed);
+        this.changed = Collections.unmodifiableSet(changed);
+    }
+
+    public JavaKeyStore getJavaKeyStore() {
+        return javaKeyStore;
+    }
+
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    public Set<String> getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty () {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    public String toString () {
+        return "added " + added + ", removed " + removed + ", changed " + changed;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+/**
+ * Something that wants to know when a {@link JavaKeyStore} is reloaded with different contents.
+ *
+ * <p>
+ *     Typical listeners rebuild an SSL context or drop cached keys.  Listeners are called on the thread that
+ *     did the reload (the watcher thread, for {@link JavaKeyStore#startWatching()}), after the new contents
+ *     have been swapped in.  They should be quick; an exception thrown by a listener is ignored.
+ * </p>
+ *
+ * @see JavaKeyStore#addListener(JavaKeyStoreListener)
+ */
+public interface JavaKeyStoreListener {
+    /**
+     * The key store changed.
+     *
+     * @param change The aliases that were added, removed or changed.
+     */
+    void keyStoreChanged (JavaKeyStoreChange change);
+}
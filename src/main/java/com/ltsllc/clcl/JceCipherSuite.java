@@ -0,0 +1,184 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * A {@link CipherSuite} that is a single JCE transformation, such as AES/GCM/NoPadding.
+ */
+public class JceCipherSuite extends CipherSuite {
+    /**
+     * How the initialization vector is passed to the cipher.
+     */
+    public enum ParameterType {
+        /** As an {@link IvParameterSpec}. */
+        IV,
+        /** As a {@link GCMParameterSpec} with a 128 bit tag. */
+        GCM
+    }
+
+    public static final int GCM_TAG_BITS = 128;
+
+    private String transformation;
+    private String keyAlgorithm;
+    private int keyLength;
+    private int ivLength;
+    private int tagLength;
+    private ParameterType parameterType;
+
+    /**
+     * @param tagLength The length, in bytes, of the authentication tag the transformation appends, or 0 if
+     *                  it does not authenticate.
+     */
+    public JceCipherSuite (String transformation, String keyAlgorithm, int keyLength, int ivLength,
+                           int tagLength, ParameterType parameterType) {
+        super(transformation);
+
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyLength = keyLength;
+        this.ivLength = ivLength;
+        this.tagLength = tagLength;
+        this.parameterType = parameterType;
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    @Override
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    @Override
+    public int getIvLength() {
+        return ivLength;
+    }
+
+    public int getTagLength() {
+        return tagLength;
+    }
+
+    public ParameterType getParameterType() {
+        return parameterType;
+    }
+
+    @Override
+    public SecretKey toSecretKey(byte[] encoded) {
+        return toSecretKey(encoded, getKeyAlgorithm());
+    }
+
+    public AlgorithmParameterSpec toParameterSpec (byte[] iv) {
+        if (getParameterType() == ParameterType.GCM)
+            return new GCMParameterSpec(GCM_TAG_BITS, iv);
+        else
+            return new IvParameterSpec(iv);
+    }
+
+    @Override
+    public byte[] encrypt(SecretKey sessionKey, byte[] iv, byte[] plainText) throws GeneralSecurityException {
+        Cipher cipher = CryptoEngines.getCipher(getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, sessionKey, toParameterSpec(iv));
+        return cipher.doFinal(plainText);
+    }
+
+    @Override
+    public byte[] decrypt(SecretKey sessionKey, byte[] iv, byte[] cipherText) throws GeneralSecurityException {
+        return getDecryptingCipher(sessionKey, iv).doFinal(cipherText);
+    }
+
+    @Override
+    public int encrypt(SecretKey sessionKey, byte[] iv, ByteBuffer plainText, ByteBuffer cipherText)
+            throws GeneralSecurityException {
+        return encrypt(sessionKey, iv, null, plainText, cipherText);
+    }
+
+    @Override
+    public int decrypt(SecretKey sessionKey, byte[] iv, ByteBuffer cipherText, ByteBuffer plainText)
+            throws GeneralSecurityException {
+        return decrypt(sessionKey, iv, null, cipherText, plainText);
+    }
+
+    /**
+     * Encrypt a buffer along with some additional data that is authenticated but not encrypted.
+     *
+     * @param associatedData The additional data, or null.  This only means something if the suite
+     *                       authenticates (see {@link #getTagLength()}).
+     * @return The number of bytes written.
+     */
+    public int encrypt(SecretKey sessionKey, byte[] iv, byte[] associatedData, ByteBuffer plainText,
+                       ByteBuffer cipherText) throws GeneralSecurityException {
+        Cipher cipher = CryptoEngines.getCipher(getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, sessionKey, toParameterSpec(iv));
+        if (associatedData != null)
+            cipher.updateAAD(associatedData);
+
+        return cipher.doFinal(plainText, cipherText);
+    }
+
+    /**
+     * Decrypt a buffer that was encrypted with
+     * {@link #encrypt(SecretKey, byte[], byte[], ByteBuffer, ByteBuffer)}.
+     *
+     * @throws javax.crypto.AEADBadTagException If the message or the additional data has been tampered with.
+     */
+    public int decrypt(SecretKey sessionKey, byte[] iv, byte[] associatedData, ByteBuffer cipherText,
+                       ByteBuffer plainText) throws GeneralSecurityException {
+        Cipher cipher = getDecryptingCipher(sessionKey, iv);
+        if (associatedData != null)
+            cipher.updateAAD(associatedData);
+
+        return cipher.doFinal(cipherText, plainText);
+    }
+
+    private Cipher getDecryptingCipher (SecretKey sessionKey, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = CryptoEngines.getCipher(getTransformation());
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, sessionKey, toParameterSpec(iv));
+        } catch (InvalidKeyException e) {
+            //
+            // some ciphers (ChaCha20 for example) refuse to be initialized with the key and nonce they were
+            // last used with, even to decrypt; a new cipher does not know what the last ones were
+            //
+            cipher = createCipher(Cipher.DECRYPT_MODE, sessionKey, iv);
+        }
+
+        return cipher;
+    }
+
+    @Override
+    public Cipher createCipher(int mode, SecretKey sessionKey, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(getTransformation());
+        cipher.init(mode, sessionKey, toParameterSpec(iv));
+        return cipher;
+    }
+}
@@ -19,16 +19,41 @@ package com.ltsllc.clcl;
 
 import com.ltsllc.commons.util.HexConverter;
 import com.ltsllc.commons.util.Utils;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.Security;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A class that can be used to encrypt or decrypt messages.
@@ -39,14 +64,85 @@ import java.security.Security;
  * </p>
  */
 abstract public class Key implements Serializable {
+    /**
+     * The largest encrypted session key that {@link #openDecryptingStream(InputStream)} will accept.
+     */
+    public static final int MAX_SESSION_KEY_LENGTH = 8192;
+
     abstract public String getSessionAlgorithm ();
     abstract public byte[] encrypt (byte[] plainText) throws EncryptionException;
     abstract public byte[] decrypt (byte[] cipherText) throws EncryptionException;
     abstract public String toPem () throws EncryptionException;
 
+    /**
+     * An id for the key pair this key belongs to.
+     *
+     * <p>
+     *     The id is the SHA-256 digest, in hexadecimal, of the encoded public key for RSA keys and of the
+     *     uncompressed public point for elliptic curve keys.  A public key and its private key therefore
+     *     have the same id.  {@link MultiRecipientMessage} uses it to find a recipient's session key.
+     * </p>
+     *
+     * @return The id.
+     * @throws EncryptionException If the id cannot be computed.
+     */
+    abstract public String getKeyId () throws EncryptionException;
+
     public static String SESSION_ALGORITHM = "AES";
+    public static final String KEY_ID_ALGORITHM = "SHA-256";
+
+    /**
+     * The cipher used to encrypt session keys for RSA keys.
+     */
+    public static final String RSA_CIPHER = "RSA";
+
+    /**
+     * The cipher used to encrypt session keys for elliptic curve keys: ECIES, from the
+     * {@link BouncyCastleProvider}.
+     */
+    public static final String EC_CIPHER = "ECIES";
+
+    public static final String RSA_SIGNATURE_ALGORITHM = "SHA1withRSA";
+    public static final String EC_SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    /**
+     * The algorithm {@link PrivateKey#sign(byte[])} uses with RSA keys.
+     */
+    public static final String RSA_MESSAGE_SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+    /**
+     * About how much of a file {@link #encryptFile(String, Path, Path)} and {@link #decryptFile(Path, Path)}
+     * hold in memory at once.
+     */
+    public static final int FILE_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * How much of a stream is read at a time when it is signed or verified.
+     */
+    public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The mode used when a session key is reused with an algorithm that does not name one.
+     */
+    public static final String REUSE_MODE = "/CBC/PKCS5Padding";
+
+    /**
+     * A session key that is being reused, along with how much it has been used.
+     */
+    private static class Session {
+        private String algorithm;
+        private SecretKey secretKey;
+        private byte[] sessionKeyCipherText;
+        private long created;
+        private long messages;
+        private long bytes;
+    }
 
     private DistinguishedName dn;
+    private String cipherSuite;
+    private transient volatile SessionKeyPolicy sessionKeyPolicy;
+    private transient Session session;
+    private transient CryptoExecutor cryptoExecutor;
 
     public DistinguishedName getDn() {
         return dn;
@@ -56,6 +152,165 @@ abstract public class Key implements Serializable {
         this.dn = dn;
     }
 
+    public String getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Choose the {@link CipherSuite} that {@link #getSessionAlgorithm()} returns.
+     *
+     * @param cipherSuite The id of the suite, or null to use the default session algorithm.
+     * @throws EncryptionException If there is no such suite or it is not available on this JVM.
+     */
+    public void setCipherSuite(String cipherSuite) throws EncryptionException {
+        if (cipherSuite != null) {
+            CipherSuite suite = CipherSuite.getCipherSuite(cipherSuite);
+            if (suite == null || !suite.isAvailable())
+                throw new EncryptionException("Cipher suite not available: " + cipherSuite);
+        }
+
+        this.cipherSuite = cipherSuite;
+    }
+
+    public SessionKeyPolicy getSessionKeyPolicy() {
+        return sessionKeyPolicy;
+    }
+
+    /**
+     * Reuse session keys in {@link #encrypt(String, byte[])}.
+     *
+     * <p>
+     *     With a policy, this object reuses a session key and its encrypted form until the policy says
+     *     otherwise, so that the cost of creating and encrypting session keys is spread over many messages.
+     *     Every message still gets a new initialization vector: if the algorithm does not name a mode (for
+     *     example "AES") then {@link #REUSE_MODE} is used.  Transformations that take no initialization
+     *     vector, such as ECB, get a new session key for every message instead.  Passing null turns reuse off.
+     * </p>
+     *
+     * @param sessionKeyPolicy The policy to use, or null.
+     */
+    public synchronized void setSessionKeyPolicy(SessionKeyPolicy sessionKeyPolicy) {
+        this.sessionKeyPolicy = sessionKeyPolicy;
+        this.session = null;
+    }
+
+    /**
+     * The executor for the async methods of this key.
+     *
+     * @return The executor set with {@link #setCryptoExecutor(CryptoExecutor)}, or
+     * {@link CryptoExecutor#getDefault()} if there is none.
+     */
+    public CryptoExecutor getCryptoExecutor() {
+        return cryptoExecutor == null ? CryptoExecutor.getDefault() : cryptoExecutor;
+    }
+
+    public void setCryptoExecutor(CryptoExecutor cryptoExecutor) {
+        this.cryptoExecutor = cryptoExecutor;
+    }
+
+    /**
+     * Encrypt a message with {@link #getSessionAlgorithm()} on the {@link #getCryptoExecutor()}.
+     *
+     * @param plainText The message to be encrypted.
+     * @return A future for the encrypted message.
+     * @see CryptoExecutor#submit(java.util.concurrent.Callable)
+     */
+    public CompletableFuture<EncryptedMessage> encryptAsync (byte[] plainText) {
+        return encryptAsync(getSessionAlgorithm(), plainText);
+    }
+
+    /**
+     * Encrypt a message on the {@link #getCryptoExecutor()}.
+     *
+     * @see #encrypt(String, byte[])
+     */
+    public CompletableFuture<EncryptedMessage> encryptAsync (final String algorithm, final byte[] plainText) {
+        return getCryptoExecutor().submit(new Callable<EncryptedMessage>() {
+            @Override
+            public EncryptedMessage call() throws EncryptionException {
+                return encrypt(algorithm, plainText);
+            }
+        });
+    }
+
+    /**
+     * Decrypt a message on the {@link #getCryptoExecutor()}.
+     *
+     * @see #decrypt(EncryptedMessage)
+     */
+    public CompletableFuture<byte[]> decryptAsync (final EncryptedMessage encryptedMessage) {
+        return getCryptoExecutor().submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws EncryptionException {
+                return decrypt(encryptedMessage);
+            }
+        });
+    }
+
+    /**
+     * Encrypt a batch of messages with {@link #getSessionAlgorithm()} on the common {@link ForkJoinPool}.
+     *
+     * @see #encryptAll(String, List, ForkJoinPool)
+     */
+    public BatchResult<EncryptedMessage> encryptAll (List<byte[]> plainTexts) {
+        return encryptAll(getSessionAlgorithm(), plainTexts, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypt a batch of messages.
+     *
+     * <p>
+     *     The messages are spread across the pool and each is encrypted as by {@link #encrypt(String, byte[])},
+     *     so a {@link SessionKeyPolicy} applies as usual.  Each worker thread keeps its own ciphers (see
+     *     {@link CryptoEngines}).  A message that cannot be encrypted is reported in the result; the rest of
+     *     the batch is unaffected.
+     * </p>
+     *
+     * @param algorithm The algorithm or cipher suite to use.
+     * @param plainTexts The messages.
+     * @param forkJoinPool The pool to encrypt them in.
+     * @return The encrypted messages, in the same order as the plain texts.
+     */
+    public BatchResult<EncryptedMessage> encryptAll (final String algorithm, List<byte[]> plainTexts,
+                                                     ForkJoinPool forkJoinPool) {
+        return BatchResult.process(plainTexts, new BatchResult.Operation<byte[], EncryptedMessage>() {
+            @Override
+            public EncryptedMessage apply(byte[] plainText) throws EncryptionException {
+                return encrypt(algorithm, plainText);
+            }
+        }, forkJoinPool);
+    }
+
+    /**
+     * Decrypt a batch of messages on the common {@link ForkJoinPool}.
+     *
+     * @see #decryptAll(List, ForkJoinPool)
+     */
+    public BatchResult<byte[]> decryptAll (List<EncryptedMessage> encryptedMessages) {
+        return decryptAll(encryptedMessages, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypt a batch of messages.
+     *
+     * <p>
+     *     This works like {@link #encryptAll(String, List, ForkJoinPool)}: each message is decrypted as by
+     *     {@link #decrypt(EncryptedMessage)} and a message that cannot be decrypted is reported in the result.
+     * </p>
+     *
+     * @param encryptedMessages The messages.
+     * @param forkJoinPool The pool to decrypt them in.
+     * @return The plain texts, in the same order as the messages.
+     */
+    public BatchResult<byte[]> decryptAll (List<EncryptedMessage> encryptedMessages, ForkJoinPool forkJoinPool) {
+        return BatchResult.process(encryptedMessages, new BatchResult.Operation<EncryptedMessage, byte[]>() {
+            @Override
+            public byte[] apply(EncryptedMessage encryptedMessage) throws EncryptionException {
+                return decrypt(encryptedMessage);
+            }
+        }, forkJoinPool);
+    }
+
     public EncryptedMessage encryptToMessage (byte[] plainText) throws EncryptionException {
         return encrypt(getSessionAlgorithm(), plainText);
     }
@@ -80,30 +335,470 @@ abstract public class Key implements Serializable {
     public EncryptedMessage encrypt (String algorithm, byte[] plainText)
             throws EncryptionException
     {
+        if (getSessionKeyPolicy() != null)
+            return encryptWithSession(algorithm, plainText);
+
+        SecretKey sessionKey = generateSessionKey(algorithm);
+        byte[] sessionKeyCipherText = encrypt(sessionKey.getEncoded());
+
+        return encrypt(algorithm, sessionKey, sessionKeyCipherText, plainText);
+    }
+
+    /**
+     * Encrypt a message with a session key that has already been encrypted.
+     *
+     * <p>
+     *     If the algorithm is the id of a {@link CipherSuite}, that suite is used and a new initialization
+     *     vector is created for the message.  Otherwise the algorithm is treated as a JCE transformation.
+     * </p>
+     *
+     * @param algorithm The algorithm or cipher suite to use.
+     * @param sessionKey The session key.
+     * @param sessionKeyCipherText The session key, encrypted with this object.
+     * @param plainText The message to encrypt.
+     * @return The encrypted message.
+     * @throws EncryptionException If there is a problem encrypting the message.
+     */
+    public EncryptedMessage encrypt (String algorithm, SecretKey sessionKey, byte[] sessionKeyCipherText,
+                                     byte[] plainText) throws EncryptionException {
+        return encryptWithSessionKey(algorithm, sessionKey, sessionKeyCipherText, plainText);
+    }
+
+    /**
+     * Encrypt a message with a session key.
+     *
+     * <p>
+     *     This does not involve a {@link Key} at all: the caller is responsible for the session key.
+     *     See {@link #encrypt(String, SecretKey, byte[], byte[])}.
+     * </p>
+     */
+    public static EncryptedMessage encryptWithSessionKey (String algorithm, SecretKey sessionKey,
+                                                          byte[] sessionKeyCipherText, byte[] plainText)
+            throws EncryptionException {
         try {
-            KeyGenerator keyGenerator = KeyGenerator.getInstance(algorithm);
-            SecretKey sessionKey = keyGenerator.generateKey();
+            CipherSuite cipherSuite = CipherSuite.getCipherSuite(algorithm);
 
-            Cipher cipher = Cipher.getInstance(algorithm);
+            if (cipherSuite != null) {
+                byte[] iv = cipherSuite.newIv();
+                byte[] cipherText = cipherSuite.encrypt(sessionKey, iv, plainText);
+                return new EncryptedMessage(algorithm, sessionKeyCipherText, iv, cipherText);
+            }
+
+            Cipher cipher = CryptoEngines.getCipher(algorithm);
             cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
+            byte[] cipherText = cipher.doFinal(plainText);
 
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(byteArrayOutputStream, cipher);
-            cipherOutputStream.write(plainText);
-            cipherOutputStream.close();
+            return new EncryptedMessage(algorithm, sessionKeyCipherText, cipher.getIV(), cipherText);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to encrypt message", e);
+        }
+    }
 
-            byte[] sessionKeyCipherText = encrypt(sessionKey.getEncoded());
-            String sessionKeyCipherTextString = HexConverter.toHexString(sessionKeyCipherText);
-            String cipherTextString = HexConverter.toHexString(byteArrayOutputStream.toByteArray());
+    /**
+     * Create a new session key for an algorithm or cipher suite.
+     *
+     * @param algorithm The algorithm or cipher suite id.
+     * @return The new session key.
+     * @throws EncryptionException If the algorithm is not available.
+     */
+    public static SecretKey generateSessionKey (String algorithm) throws EncryptionException {
+        CipherSuite cipherSuite = CipherSuite.getCipherSuite(algorithm);
+        if (cipherSuite != null)
+            return cipherSuite.generateKey();
 
-            EncryptedMessage encryptedMessage = new EncryptedMessage(algorithm, sessionKeyCipherTextString, cipherTextString);
+        try {
+            KeyGenerator keyGenerator = CryptoEngines.getKeyGenerator(getKeyAlgorithm(algorithm));
+            return keyGenerator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to create session key", e);
+        }
+    }
 
-            return encryptedMessage;
-        } catch (GeneralSecurityException|IOException e) {
+    /**
+     * Encrypt a message with a session key that may be shared with other messages.
+     *
+     * @see #setSessionKeyPolicy(SessionKeyPolicy)
+     */
+    protected EncryptedMessage encryptWithSession (String algorithm, byte[] plainText) throws EncryptionException {
+        algorithm = toReuseAlgorithm(algorithm);
+        Session session = acquireSession(algorithm, plainText.length);
+        return encrypt(algorithm, session.secretKey, session.sessionKeyCipherText, plainText);
+    }
+
+    /**
+     * Return the algorithm to use when a session key is reused: one that takes an initialization vector.
+     */
+    protected static String toReuseAlgorithm (String algorithm) {
+        if (CipherSuite.getCipherSuite(algorithm) == null && algorithm.indexOf('/') == -1)
+            return algorithm + REUSE_MODE;
+        else
+            return algorithm;
+    }
+
+    /**
+     * Get the session key for the next message, creating a new one if the policy requires it.
+     */
+    private synchronized Session acquireSession (String algorithm, long length) throws EncryptionException {
+        Session current = this.session;
+
+        if (current == null || !current.algorithm.equals(algorithm)
+                || !getSessionKeyPolicy().allows(current.messages, current.bytes, current.created, length)) {
+            current = new Session();
+            current.algorithm = algorithm;
+            current.secretKey = generateSessionKey(algorithm);
+            current.sessionKeyCipherText = encrypt(current.secretKey.getEncoded());
+            current.created = System.currentTimeMillis();
+
+            // without an initialization vector, equal messages would give equal cipher text
+            if (takesIv(algorithm, current.secretKey))
+                this.session = current;
+        }
+
+        current.messages++;
+        current.bytes += length;
+        return current;
+    }
+
+    /**
+     * Does the algorithm use an initialization vector with this session key?
+     */
+    private static boolean takesIv (String algorithm, SecretKey secretKey) throws EncryptionException {
+        if (CipherSuite.getCipherSuite(algorithm) != null)
+            return true;
+
+        try {
+            Cipher cipher = CryptoEngines.getCipher(algorithm);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            return cipher.getIV() != null;
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to create cipher", e);
+        }
+    }
+
+    /**
+     * Encrypt a large message on several cores.
+     *
+     * <p>
+     *     The message is split into segments of {@link SegmentedMessage#DEFAULT_SEGMENT_SIZE} bytes which
+     *     are encrypted in parallel on the common {@link ForkJoinPool}.  The result is decrypted with
+     *     {@link #decrypt(EncryptedMessage)} like any other message.
+     * </p>
+     *
+     * @param algorithm An authenticated cipher suite, such as {@link CipherSuite#AES_GCM}.
+     * @param plainText The message to be encrypted.
+     * @return The encrypted message.
+     * @throws EncryptionException If there is a problem encrypting the message.
+     * @see SegmentedMessage
+     */
+    public SegmentedMessage encryptSegmented (String algorithm, byte[] plainText) throws EncryptionException {
+        return SegmentedMessage.encrypt(this, algorithm, plainText, SegmentedMessage.DEFAULT_SEGMENT_SIZE,
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypt a file with {@link SegmentedMessage#DEFAULT_ALGORITHM}.
+     *
+     * @see #encryptFile(String, Path, Path)
+     */
+    public void encryptFile (Path input, Path output) throws EncryptionException {
+        encryptFile(SegmentedMessage.DEFAULT_ALGORITHM, input, output);
+    }
+
+    /**
+     * Encrypt a file.
+     *
+     * <p>
+     *     The file is encrypted as a {@link SegmentedMessage}: the output is the header that
+     *     {@link SegmentedMessage#writeHeaderTo(ByteBuffer)} writes followed by the encrypted segments, which
+     *     run to the end of the file.  The file is read and written through {@link FileChannel}s a few
+     *     megabytes at a time, using direct buffers that are reused for the whole file, so the memory used
+     *     does not depend on the size of the file.  Each run of segments is encrypted in parallel.
+     * </p>
+     *
+     * @param algorithm An authenticated cipher suite, such as {@link CipherSuite#AES_GCM}.
+     * @param input The file to encrypt.
+     * @param output Where the encrypted file should go.  It is replaced if it exists.
+     * @throws EncryptionException If there is a problem reading, encrypting or writing the file.
+     */
+    public void encryptFile (String algorithm, Path input, Path output) throws EncryptionException {
+        try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            JceCipherSuite cipherSuite = SegmentedMessage.getCipherSuite(algorithm);
+            int segmentSize = SegmentedMessage.DEFAULT_SEGMENT_SIZE;
+            long size = inputChannel.size();
+            long segments = SegmentedMessage.getSegmentCount(size, segmentSize);
+
+            SecretKey sessionKey = cipherSuite.generateKey();
+            byte[] iv = cipherSuite.newIv();
+            SegmentedMessage header = new SegmentedMessage(algorithm, encrypt(sessionKey.getEncoded()), iv, null,
+                    segmentSize);
+
+            ByteBuffer headerBuffer = ByteBuffer.allocate(header.getHeaderLength());
+            header.writeHeaderTo(headerBuffer);
+            headerBuffer.flip();
+            writeFully(outputChannel, headerBuffer);
+
+            int runSegments = Math.max(1, FILE_BUFFER_SIZE / segmentSize);
+            ByteBuffer plainText = ByteBuffer.allocateDirect(runSegments * segmentSize);
+            ByteBuffer cipherText = ByteBuffer.allocateDirect(runSegments * (segmentSize + cipherSuite.getTagLength()));
+
+            for (long first = 0; first < segments; first += runSegments) {
+                long offset = first * segmentSize;
+                plainText.clear();
+                plainText.limit((int) Math.min(plainText.capacity(), size - offset));
+                readFully(inputChannel, plainText, offset);
+                plainText.flip();
+
+                long count = SegmentedMessage.getSegmentCount(plainText.remaining(), segmentSize);
+                cipherText.clear();
+                SegmentedMessage.encryptSegments(cipherSuite, sessionKey, iv, segmentSize, plainText, cipherText,
+                        first, first + runSegments >= segments, ForkJoinPool.commonPool());
+
+                cipherText.limit((int) (plainText.remaining() + count * cipherSuite.getTagLength()));
+                writeFully(outputChannel, cipherText);
+            }
+        } catch (IOException e) {
+            throw new EncryptionException("Exception trying to encrypt file", e);
+        }
+    }
+
+    /**
+     * Decrypt a file written by {@link #encryptFile(String, Path, Path)}.
+     *
+     * <p>
+     *     The plain text is written to a temporary file next to the output, which replaces the output only
+     *     once the whole file has been decrypted.  So a file that has been tampered with does not leave
+     *     partly decrypted, unauthenticated data behind.
+     * </p>
+     *
+     * @param input The encrypted file.
+     * @param output Where the decrypted file should go.  It is replaced if it exists.
+     * @throws EncryptionException If the file has been tampered with or there is a problem reading,
+     * decrypting or writing it.
+     */
+    public void decryptFile (Path input, Path output) throws EncryptionException {
+        Path directory = output.toAbsolutePath().getParent();
+        Path temporary = null;
+
+        try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = inputChannel.size();
+            ByteBuffer headerBuffer = ByteBuffer.allocate((int) Math.min(size, SegmentedMessage.MAX_HEADER_LENGTH));
+            readFully(inputChannel, headerBuffer, 0);
+            headerBuffer.flip();
+
+            SegmentedMessage header = SegmentedMessage.readHeaderFrom(headerBuffer);
+            JceCipherSuite cipherSuite = SegmentedMessage.getCipherSuite(header.getAlgorithm());
+            int segmentSize = header.getSegmentSize();
+            long start = headerBuffer.position();
+            SegmentedMessage.getPlainTextLength(cipherSuite, segmentSize, size - start);
+            int segmentLength = segmentSize + cipherSuite.getTagLength();
+            long segments = Math.max(1, (size - start + segmentLength - 1) / segmentLength);
+
+            checkProviders();
+            SecretKey sessionKey = decryptSessionKey(header.getAlgorithm(), header.getKeyBytes());
+
+            temporary = Files.createTempFile(directory, "clcl", ".tmp");
+
+            try (FileChannel outputChannel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                int runSegments = Math.max(1, FILE_BUFFER_SIZE / segmentSize);
+                ByteBuffer cipherText = ByteBuffer.allocateDirect(runSegments * segmentLength);
+                ByteBuffer plainText = ByteBuffer.allocateDirect(runSegments * segmentSize);
+
+                for (long first = 0; first < segments; first += runSegments) {
+                    long offset = start + first * segmentLength;
+                    cipherText.clear();
+                    cipherText.limit((int) Math.min(cipherText.capacity(), size - offset));
+                    readFully(inputChannel, cipherText, offset);
+                    cipherText.flip();
+
+                    plainText.clear();
+                    SegmentedMessage.decryptSegments(cipherSuite, sessionKey, header.getIv(), segmentSize,
+                            cipherText, plainText, first, first + runSegments >= segments,
+                            ForkJoinPool.commonPool());
+
+                    long count = Math.max(1, (cipherText.remaining() + segmentLength - 1) / segmentLength);
+                    plainText.limit((int) (cipherText.remaining() - count * cipherSuite.getTagLength()));
+                    writeFully(outputChannel, plainText);
+                }
+            }
+
+            Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING);
+            temporary = null;
+        } catch (IOException e) {
+            throw new EncryptionException("Exception trying to decrypt file", e);
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // the decryption already failed; that is the exception the caller needs to see
+                }
+            }
+        }
+    }
+
+    private static void readFully (FileChannel fileChannel, ByteBuffer byteBuffer, long position) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            int count = fileChannel.read(byteBuffer, position);
+            if (count < 0)
+                throw new EOFException("The file changed while it was being read");
+
+            position += count;
+        }
+    }
+
+    private static void writeFully (FileChannel fileChannel, ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            fileChannel.write(byteBuffer);
+        }
+    }
+
+    /**
+     * Encrypt a buffer with {@link #getSessionAlgorithm()}.
+     *
+     * @see #encrypt(String, ByteBuffer, ByteBuffer)
+     */
+    public int encrypt (ByteBuffer plainText, ByteBuffer cipherText) throws EncryptionException {
+        return encrypt(getSessionAlgorithm(), plainText, cipherText);
+    }
+
+    /**
+     * Encrypt the remaining bytes of one buffer into another.
+     *
+     * <p>
+     *     This does the same thing as {@link #encrypt(String, byte[])} followed by
+     *     {@link EncryptedMessage#writeTo(ByteBuffer)}, but the message is encrypted straight from one buffer
+     *     into the other without being copied into arrays along the way.  Either buffer may be direct.
+     *     The result can be read with {@link #decrypt(ByteBuffer, ByteBuffer)} or
+     *     {@link EncryptedMessage#readFrom(ByteBuffer)}.
+     * </p>
+     *
+     * <p>
+     *     Creating and encrypting a session key dominates the cost of small messages, so callers that
+     *     encrypt many messages should also set a {@link SessionKeyPolicy}.
+     * </p>
+     *
+     * <p>
+     *     On success, the plain text buffer has no bytes remaining and the cipher text buffer is positioned
+     *     just past the message.  On failure, for example if the cipher text buffer is too small, both
+     *     buffers are left where they were so the caller can try again with a larger buffer.
+     * </p>
+     *
+     * @param algorithm The algorithm or cipher suite to use.
+     * @param plainText The message to be encrypted.
+     * @param cipherText Where the encrypted message should go.
+     * @return The number of bytes written to the cipher text buffer.
+     * @throws EncryptionException If there is a problem encrypting the message.
+     */
+    public int encrypt (String algorithm, ByteBuffer plainText, ByteBuffer cipherText) throws EncryptionException {
+        SecretKey sessionKey;
+        byte[] sessionKeyCipherText;
+
+        if (getSessionKeyPolicy() != null) {
+            algorithm = toReuseAlgorithm(algorithm);
+            Session session = acquireSession(algorithm, plainText.remaining());
+            sessionKey = session.secretKey;
+            sessionKeyCipherText = session.sessionKeyCipherText;
+        } else {
+            sessionKey = generateSessionKey(algorithm);
+            sessionKeyCipherText = encrypt(sessionKey.getEncoded());
+        }
+
+        int plainTextStart = plainText.position();
+        int start = cipherText.position();
+
+        try {
+            CipherSuite cipherSuite = CipherSuite.getCipherSuite(algorithm);
+            Cipher cipher = null;
+            byte[] iv;
+
+            if (cipherSuite != null) {
+                iv = cipherSuite.newIv();
+            } else {
+                cipher = CryptoEngines.getCipher(algorithm);
+                cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
+                iv = cipher.getIV();
+            }
+
+            EncryptedMessage header = new EncryptedMessage(algorithm, sessionKeyCipherText, iv, null);
+            header.writeHeaderTo(cipherText);
+            int lengthPosition = cipherText.position();
+            cipherText.putInt(0);
+
+            int length;
+            if (cipherSuite != null)
+                length = cipherSuite.encrypt(sessionKey, iv, plainText, cipherText);
+            else
+                length = cipher.doFinal(plainText, cipherText);
+
+            cipherText.putInt(lengthPosition, length);
+            return cipherText.position() - start;
+        } catch (GeneralSecurityException|IOException|BufferOverflowException e) {
+            plainText.position(plainTextStart);
+            cipherText.position(start);
             throw new EncryptionException("Exception trying to encrypt message", e);
         }
     }
 
+    /**
+     * Decrypt a message written by {@link #encrypt(String, ByteBuffer, ByteBuffer)} or
+     * {@link EncryptedMessage#writeTo(ByteBuffer)}.
+     *
+     * <p>
+     *     The cipher text is decrypted where it lies, straight into the plain text buffer.  On success, the
+     *     cipher text buffer is positioned just past the message, so several messages can be read from one
+     *     buffer in turn.  On failure both buffers are left where they were.
+     * </p>
+     *
+     * @param cipherText The buffer containing the encrypted message.
+     * @param plainText Where the decrypted message should go.
+     * @return The number of bytes written to the plain text buffer.
+     * @throws EncryptionException If there is a problem decrypting the message.
+     */
+    public int decrypt (ByteBuffer cipherText, ByteBuffer plainText) throws EncryptionException {
+        int start = cipherText.position();
+        int plainTextStart = plainText.position();
+        boolean done = false;
+
+        try {
+            checkProviders();
+
+            EncryptedMessage header = EncryptedMessage.readHeaderFrom(cipherText);
+            int length = EncryptedMessage.readMessageLength(cipherText);
+            ByteBuffer message = cipherText.duplicate();
+            message.limit(message.position() + length);
+
+            SecretKey sessionKey = decryptSessionKey(header.getAlgorithm(), header.getKeyBytes());
+
+            int written;
+            CipherSuite cipherSuite = CipherSuite.getCipherSuite(header.getAlgorithm());
+            if (cipherSuite != null) {
+                written = cipherSuite.decrypt(sessionKey, header.getIv(), message, plainText);
+            } else {
+                Cipher cipher = CryptoEngines.getCipher(header.getAlgorithm());
+                if (header.getIv() == null)
+                    cipher.init(Cipher.DECRYPT_MODE, sessionKey);
+                else
+                    cipher.init(Cipher.DECRYPT_MODE, sessionKey, new IvParameterSpec(header.getIv()));
+
+                written = cipher.doFinal(message, plainText);
+            }
+
+            cipherText.position(message.limit());
+            done = true;
+            return written;
+        } catch (GeneralSecurityException|IOException e) {
+            throw new EncryptionException("Exception trying to decrypt message", e);
+        } finally {
+            if (!done) {
+                cipherText.position(start);
+                plainText.position(plainTextStart);
+            }
+        }
+    }
+
     /**
      * A convenience method for encrypting Strings.
      *
@@ -157,26 +852,332 @@ abstract public class Key implements Serializable {
     public byte[] decrypt (EncryptedMessage encryptedMessage)
         throws EncryptionException
     {
+        checkProviders();
+
+        if (encryptedMessage instanceof MultiRecipientMessage)
+            return ((MultiRecipientMessage) encryptedMessage).decrypt(this);
+
+        SecretKey sessionKey = decryptSessionKey(encryptedMessage.getAlgorithm(), encryptedMessage.getKeyBytes());
+        return decryptWithSessionKey(encryptedMessage, sessionKey);
+    }
+
+    /**
+     * Decrypt a message whose session key has already been decrypted.
+     *
+     * @param encryptedMessage The message to be decrypted.  Its encrypted session key is ignored.
+     * @param sessionKey The session key.
+     * @return The decrypted message.
+     * @throws EncryptionException If there is a problem decrypting the message.
+     */
+    public static byte[] decryptWithSessionKey (EncryptedMessage encryptedMessage, SecretKey sessionKey)
+            throws EncryptionException
+    {
+        if (encryptedMessage instanceof SegmentedMessage)
+            return ((SegmentedMessage) encryptedMessage).decrypt(sessionKey, ForkJoinPool.commonPool());
+
+        try {
+            CipherSuite cipherSuite = CipherSuite.getCipherSuite(encryptedMessage.getAlgorithm());
+            if (cipherSuite != null)
+                return cipherSuite.decrypt(sessionKey, encryptedMessage.getIv(), encryptedMessage.getMessageBytes());
+
+            Cipher cipher = CryptoEngines.getCipher(encryptedMessage.getAlgorithm());
+            if (encryptedMessage.getIv() == null)
+                cipher.init(Cipher.DECRYPT_MODE, sessionKey);
+            else
+                cipher.init(Cipher.DECRYPT_MODE, sessionKey, new IvParameterSpec(encryptedMessage.getIv()));
+
+            return cipher.doFinal(encryptedMessage.getMessageBytes());
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to decrypt message", e);
+        }
+    }
+
+    /**
+     * Return the key algorithm for a transformation.
+     *
+     * <p>
+     *     For example, the key algorithm for "AES/CBC/PKCS5Padding" is "AES."
+     * </p>
+     *
+     * @param algorithm The algorithm or transformation.
+     * @return The key algorithm.
+     */
+    public static String getKeyAlgorithm (String algorithm) {
+        int index = algorithm.indexOf('/');
+        return index == -1 ? algorithm : algorithm.substring(0, index);
+    }
+
+    /**
+     * Decrypt a session key that was encrypted with the corresponding key.
+     *
+     * @param algorithm The algorithm the session key is for.
+     * @param sessionKeyCipherText The encrypted session key.
+     * @return The session key.
+     * @throws EncryptionException If there is a problem decrypting the session key.
+     */
+    public SecretKey decryptSessionKey (String algorithm, byte[] sessionKeyCipherText) throws EncryptionException {
+        try {
+            byte[] sessionKeyPlainText = decrypt(sessionKeyCipherText);
+
+            CipherSuite cipherSuite = CipherSuite.getCipherSuite(algorithm);
+            if (cipherSuite != null)
+                return cipherSuite.toSecretKey(sessionKeyPlainText);
+
+            String keyAlgorithm = getKeyAlgorithm(algorithm);
+            SecretKeyFactory secretKeyFactory = CryptoEngines.getSecretKeyFactory(keyAlgorithm);
+
+            SecretKeySpec secretKeySpec = new SecretKeySpec(sessionKeyPlainText, keyAlgorithm);
+            return secretKeyFactory.generateSecret(secretKeySpec);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to decrypt session key", e);
+        }
+    }
+
+    /**
+     * Open a stream that encrypts whatever is written to it.
+     *
+     * <p>
+     *     This method uses {@link #getSessionAlgorithm()} for the session key.
+     *     See {@link #openEncryptingStream(String, OutputStream)} for details.
+     * </p>
+     *
+     * @param outputStream The stream where the encrypted data should go.
+     * @return A stream that encrypts what is written to it.
+     * @throws EncryptionException If there is a problem setting up the stream.
+     */
+    public OutputStream openEncryptingStream (OutputStream outputStream) throws EncryptionException {
+        return openEncryptingStream(getSessionAlgorithm(), outputStream);
+    }
+
+    /**
+     * Open a stream that encrypts whatever is written to it.
+     *
+     * <p>
+     *     This uses the same scheme as {@link #encrypt(String, byte[])}: a new session key is created and
+     *     encrypted with this object.  The algorithm, encrypted session key and initialization vector (if
+     *     any) are written to the output stream as a header and everything written to the returned stream is then encrypted with the session
+     *     key as it arrives, so the memory used does not depend on the size of the message.
+     * </p>
+     *
+     * <p>
+     *     The stream has its own cipher rather than one from {@link CryptoEngines}, since it outlives the call.
+     *     The caller must close the returned stream to write out the final block.
+     *     Closing the returned stream also closes the underlying stream.
+     * </p>
+     *
+     * @param algorithm The algorithm that should be used for the session key.
+     * @param outputStream The stream where the encrypted data should go.
+     * @return A stream that encrypts what is written to it.
+     * @throws EncryptionException If there is a problem setting up the stream.
+     */
+    public OutputStream openEncryptingStream (String algorithm, OutputStream outputStream) throws EncryptionException {
+        try {
+            SecretKey sessionKey = generateSessionKey(algorithm);
+            CipherSuite cipherSuite = CipherSuite.getCipherSuite(algorithm);
+            Cipher cipher;
+
+            if (cipherSuite != null) {
+                cipher = cipherSuite.createCipher(Cipher.ENCRYPT_MODE, sessionKey, cipherSuite.newIv());
+            } else {
+                cipher = Cipher.getInstance(algorithm);
+                cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
+            }
+
+            byte[] sessionKeyCipherText = encrypt(sessionKey.getEncoded());
+
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeUTF(algorithm);
+            dataOutputStream.writeInt(sessionKeyCipherText.length);
+            dataOutputStream.write(sessionKeyCipherText);
+            byte[] iv = cipher.getIV() == null ? new byte[0] : cipher.getIV();
+            dataOutputStream.writeByte(iv.length);
+            dataOutputStream.write(iv);
+            dataOutputStream.flush();
+
+            return new CipherOutputStream(outputStream, cipher);
+        } catch (GeneralSecurityException|IOException e) {
+            throw new EncryptionException("Exception trying to open encrypting stream", e);
+        }
+    }
+
+    /**
+     * Open a stream that decrypts data written by {@link #openEncryptingStream(String, OutputStream)}.
+     *
+     * <p>
+     *     This method reads the header from the input stream and decrypts the session key.  The data is
+     *     decrypted as it is read from the returned stream.
+     * </p>
+     *
+     * <p>
+     *     Note that an authenticated suite such as {@link CipherSuite#AES_GCM} can only check the message
+     *     once all of it has been read, and some JVMs hold back the plain text until then.  Suites that
+     *     cannot be used as a single {@link Cipher}, such as {@link CipherSuite#AES_CTR_HMAC_SHA256}, cannot
+     *     be streamed at all.
+     * </p>
+     *
+     * @param inputStream The stream that contains the encrypted data.
+     * @return A stream that returns the decrypted data.
+     * @throws EncryptionException If there is a problem reading the header or decrypting the session key.
+     */
+    public InputStream openDecryptingStream (InputStream inputStream) throws EncryptionException {
         try {
             checkProviders();
 
-            byte[] sessionKeyPlainText = decrypt(HexConverter.toByteArray(encryptedMessage.getKey()));
-            SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(encryptedMessage.getAlgorithm());
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            String algorithm = dataInputStream.readUTF();
+            int length = dataInputStream.readInt();
+            if (length < 0 || length > MAX_SESSION_KEY_LENGTH)
+                throw new EncryptionException("Invalid session key length: " + length);
+
+            byte[] sessionKeyCipherText = new byte[length];
+            dataInputStream.readFully(sessionKeyCipherText);
+            byte[] iv = new byte[dataInputStream.readUnsignedByte()];
+            dataInputStream.readFully(iv);
 
-            SecretKeySpec secretKeySpec = new SecretKeySpec(sessionKeyPlainText, encryptedMessage.getAlgorithm());
-            SecretKey sessionKey = secretKeyFactory.generateSecret(secretKeySpec);
+            SecretKey sessionKey = decryptSessionKey(algorithm, sessionKeyCipherText);
 
-            Cipher cipher = Cipher.getInstance(encryptedMessage.getAlgorithm());
-            cipher.init(Cipher.DECRYPT_MODE, sessionKey);
+            CipherSuite cipherSuite = CipherSuite.getCipherSuite(algorithm);
+            Cipher cipher;
 
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(byteArrayOutputStream, cipher);
-            cipherOutputStream.write(HexConverter.toByteArray(encryptedMessage.getMessage()));
-            cipherOutputStream.close();
+            if (cipherSuite != null) {
+                cipher = cipherSuite.createCipher(Cipher.DECRYPT_MODE, sessionKey, iv);
+            } else {
+                cipher = Cipher.getInstance(algorithm);
+                if (iv.length == 0)
+                    cipher.init(Cipher.DECRYPT_MODE, sessionKey);
+                else
+                    cipher.init(Cipher.DECRYPT_MODE, sessionKey, new IvParameterSpec(iv));
+            }
 
-            return byteArrayOutputStream.toByteArray();
+            return new CipherInputStream(inputStream, cipher);
         } catch (GeneralSecurityException|IOException e) {
-            throw new EncryptionException("Exception trying to decrypt message", e);
+            throw new EncryptionException("Exception trying to open decrypting stream", e);
+        }
+    }
+
+    /**
+     * Compute a key id from an encoded public key.
+     *
+     * @see #getKeyId()
+     */
+    protected static String toKeyId (byte[] encodedPublicKey) throws EncryptionException {
+        try {
+            java.security.MessageDigest messageDigest = CryptoEngines.getMessageDigest(KEY_ID_ALGORITHM);
+            return HexConverter.toHexString(messageDigest.digest(encodedPublicKey));
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to compute key id", e);
+        }
+    }
+
+    /**
+     * Compute a key id from the public point of an elliptic curve key.
+     *
+     * @see #getKeyId()
+     */
+    protected static String toKeyId (ECPoint point, ECParameterSpec ecParameterSpec) throws EncryptionException {
+        int length = (ecParameterSpec.getCurve().getField().getFieldSize() + 7) / 8;
+        byte[] encoded = new byte[1 + 2 * length];
+        encoded[0] = 4;
+        toFixedLength(point.getAffineX(), encoded, 1, length);
+        toFixedLength(point.getAffineY(), encoded, 1 + length, length);
+        return toKeyId(encoded);
+    }
+
+    private static void toFixedLength (BigInteger value, byte[] destination, int offset, int length) {
+        byte[] bytes = value.toByteArray();
+        int start = Math.max(0, bytes.length - length);
+        int count = bytes.length - start;
+        System.arraycopy(bytes, start, destination, offset + length - count, count);
+    }
+
+    /**
+     * Is this an elliptic curve key?
+     */
+    public static boolean isEllipticCurve (java.security.Key key) {
+        return key instanceof ECKey;
+    }
+
+    /**
+     * Convert a private key that was read from a PEM file to a JCE key.
+     *
+     * <p>
+     *     Elliptic curve keys come from the {@link BouncyCastleProvider}, like the ones that
+     *     {@link KeyPair#newKeys(String)} creates.
+     * </p>
+     */
+    protected static java.security.PrivateKey toSecurityPrivateKey (PrivateKeyInfo privateKeyInfo)
+            throws IOException, GeneralSecurityException {
+        KeyFactory keyFactory = getKeyFactory(privateKeyInfo.getPrivateKeyAlgorithm());
+        return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKeyInfo.getEncoded()));
+    }
+
+    /**
+     * Convert a public key that was read from a PEM file to a JCE key.
+     *
+     * @see #toSecurityPrivateKey(PrivateKeyInfo)
+     */
+    protected static java.security.PublicKey toSecurityPublicKey (SubjectPublicKeyInfo subjectPublicKeyInfo)
+            throws IOException, GeneralSecurityException {
+        KeyFactory keyFactory = getKeyFactory(subjectPublicKeyInfo.getAlgorithm());
+        return keyFactory.generatePublic(new X509EncodedKeySpec(subjectPublicKeyInfo.getEncoded()));
+    }
+
+    private static KeyFactory getKeyFactory (AlgorithmIdentifier algorithmIdentifier) throws GeneralSecurityException {
+        ASN1ObjectIdentifier algorithm = algorithmIdentifier.getAlgorithm();
+
+        if (X9ObjectIdentifiers.id_ecPublicKey.equals(algorithm)) {
+            if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+                Security.addProvider(new BouncyCastleProvider());
+
+            return KeyFactory.getInstance(KeyPair.EC_ALGORITHM, BouncyCastleProvider.PROVIDER_NAME);
+        }
+
+        if (PKCSObjectIdentifiers.rsaEncryption.equals(algorithm))
+            return KeyFactory.getInstance(KeyPair.ALGORITHM);
+
+        throw new NoSuchAlgorithmException("Unsupported key algorithm: " + algorithm);
+    }
+
+    /**
+     * Return a cipher, from {@link CryptoEngines}, that encrypts session keys with a public or private key.
+     */
+    protected Cipher getKeyCipher (java.security.Key key) throws GeneralSecurityException {
+        if (isEllipticCurve(key)) {
+            checkProviders();
+            return CryptoEngines.getCipher(EC_CIPHER, BouncyCastleProvider.PROVIDER_NAME);
+        }
+
+        return CryptoEngines.getCipher(RSA_CIPHER);
+    }
+
+    /**
+     * The algorithm used to sign certificates and certificate signing requests with a private key.
+     */
+    public static String getSignatureAlgorithm (java.security.Key key) {
+        return isEllipticCurve(key) ? EC_SIGNATURE_ALGORITHM : RSA_SIGNATURE_ALGORITHM;
+    }
+
+    /**
+     * The algorithm used for detached signatures of messages, such as {@link PrivateKey#sign(byte[])}.
+     *
+     * <p>
+     *     Unlike {@link #getSignatureAlgorithm(java.security.Key)}, this uses SHA-256 for RSA keys as well.
+     * </p>
+     */
+    public static String getMessageSignatureAlgorithm (java.security.Key key) {
+        return isEllipticCurve(key) ? EC_SIGNATURE_ALGORITHM : RSA_MESSAGE_SIGNATURE_ALGORITHM;
+    }
+
+    /**
+     * Feed the rest of a stream to a signature engine.
+     */
+    protected static void update (Signature signature, InputStream inputStream)
+            throws IOException, GeneralSecurityException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int count;
+
+        while ((count = inputStream.read(buffer)) != -1) {
+            signature.update(buffer, 0, count);
         }
     }
 
@@ -17,27 +17,30 @@
 
 package com.ltsllc.clcl;
 
-import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
-import org.bouncycastle.crypto.engines.DESedeEngine;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.PEMWriter;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
-import org.bouncycastle.operator.OutputEncryptor;
-import org.bouncycastle.pkcs.bc.BcPKCS12PBEOutputEncryptorBuilder;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.bouncycastle.pkcs.PKCSException;
 
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.security.GeneralSecurityException;
 import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 public class KeyPair {
     public static final String ALGORITHM = "RSA";
+    public static final String EC_ALGORITHM = "EC";
+    public static final String EC_CURVE = "secp256r1";
     public static final String SESSION_ALGORITHM = "AES";
     public static final String OPEN_SSL_ALGORITHM = "DESede/CBC/PKCS5Padding";
 
@@ -59,8 +62,38 @@ public class KeyPair {
     }
 
     public static KeyPair newKeys () throws EncryptionException {
+        return newKeys(ALGORITHM);
+    }
+
+    /**
+     * Create a new key pair.
+     *
+     * <p>
+     *     Elliptic curve keys ({@link #EC_ALGORITHM}) are on the {@link #EC_CURVE} curve.  They are much
+     *     quicker to generate and use than RSA keys, and the session keys encrypted with them are smaller.
+     * </p>
+     *
+     * @param algorithm {@link #ALGORITHM} or {@link #EC_ALGORITHM}.
+     * @return The new key pair.
+     * @throws EncryptionException If the keys cannot be created.
+     */
+    public static KeyPair newKeys (String algorithm) throws EncryptionException {
         try {
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(ALGORITHM);
+            KeyPairGenerator keyPairGenerator;
+            if (EC_ALGORITHM.equals(algorithm)) {
+                //
+                // the keys from the bouncy castle provider remember the curve when they are written as PEM,
+                // the ones from the default provider do not
+                //
+                if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+                    Security.addProvider(new BouncyCastleProvider());
+
+                keyPairGenerator = KeyPairGenerator.getInstance(algorithm, BouncyCastleProvider.PROVIDER_NAME);
+                keyPairGenerator.initialize(new ECGenParameterSpec(EC_CURVE));
+            } else {
+                keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+            }
+
             java.security.KeyPair keyPair = keyPairGenerator.generateKeyPair();
             PublicKey publicKey = new PublicKey(keyPair.getPublic());
             PrivateKey privateKey = new PrivateKey(keyPair.getPrivate());
@@ -70,6 +103,27 @@ public class KeyPair {
         }
     }
 
+    /**
+     * Create a new key pair on {@link CryptoExecutor#getDefault()}.
+     *
+     * <p>
+     *     Generating a key pair takes a long time compared to most operations, so this is a good candidate
+     *     for running off the caller's thread.
+     * </p>
+     */
+    public static CompletableFuture<KeyPair> newKeysAsync () {
+        return newKeysAsync(CryptoExecutor.getDefault());
+    }
+
+    public static CompletableFuture<KeyPair> newKeysAsync (CryptoExecutor cryptoExecutor) {
+        return cryptoExecutor.submit(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() throws EncryptionException {
+                return newKeys();
+            }
+        });
+    }
+
     public String toPem () throws EncryptionException {
         try {
             StringWriter stringWriter = new StringWriter();
@@ -91,13 +145,8 @@ public class KeyPair {
             StringReader stringReader = new StringReader(pem);
             PEMParser pemParser = new PEMParser(stringReader);
             PEMKeyPair pemKeyPair = (PEMKeyPair) pemParser.readObject();
-            JcaPEMKeyConverter jcaPEMKeyConverter = new JcaPEMKeyConverter();
-            jcaPEMKeyConverter.setProvider(new BouncyCastleProvider());
-            java.security.KeyPair keyPair = jcaPEMKeyConverter.getKeyPair(pemKeyPair);
-            PublicKey publicKey = new PublicKey(keyPair.getPublic());
-            PrivateKey privateKey = new PrivateKey(keyPair.getPrivate());
-            return new KeyPair(publicKey, privateKey);
-        } catch (IOException e) {
+            return fromPemKeyPair(pemKeyPair);
+        } catch (IOException | GeneralSecurityException e) {
             throw new EncryptionException("Exception trying to create PEM", e);
         }
     }
@@ -119,39 +168,57 @@ public class KeyPair {
     }
 */
 
+    /**
+     * Convert the key pair to PEM, protecting the private key with a password.
+     *
+     * <p>
+     *     The result is the public key followed by the private key, encrypted as in
+     *     {@link PrivateKey#toPem(String)}.
+     * </p>
+     */
     public String toPem (String password) throws EncryptionException {
-        try {
-            java.security.KeyPair keyPair = new java.security.KeyPair(getPublicKey().getSecurityPublicKey(), getPrivateKey().getSecurityPrivateKey());
-            DESedeEngine desEdeEngine = new DESedeEngine();
-            CBCBlockCipher cbcBlockCipher = new CBCBlockCipher(desEdeEngine);
-            BcPKCS12PBEOutputEncryptorBuilder bcPKCS12PBEOutputEncryptorBuilder = new BcPKCS12PBEOutputEncryptorBuilder(PKCSObjectIdentifiers.pbeWithSHAAnd3_KeyTripleDES_CBC, cbcBlockCipher);
-            OutputEncryptor outputEncryptor = bcPKCS12PBEOutputEncryptorBuilder.build(password.toCharArray());
-            StringWriter stringWriter = new StringWriter();
-            PEMWriter pemWriter = new PEMWriter(stringWriter);
-            pemWriter.writeObject(keyPair);
-            pemWriter.close();
-            return stringWriter.toString();
-        } catch (IOException e) {
-            throw new EncryptionException("Exception trying to convert private key to PEM", e);
-        }
+        return getPublicKey().toPem() + getPrivateKey().toPem(password);
     }
 
+    /**
+     * Read a key pair that was written by {@link #toPem(String)}.
+     *
+     * <p>
+     *     Key pairs that were written without a password are also accepted.
+     * </p>
+     */
     public static KeyPair fromPem (String pem, String password) throws EncryptionException {
         try {
             StringReader stringReader = new StringReader(pem);
             PEMParser pemParser = new PEMParser(stringReader);
-            PEMKeyPair pemKeyPair = (PEMKeyPair) pemParser.readObject();
-            JcaPEMKeyConverter jcaPEMKeyConverter = new JcaPEMKeyConverter();
-            jcaPEMKeyConverter.setProvider(new BouncyCastleProvider());
-            java.security.KeyPair keyPair = jcaPEMKeyConverter.getKeyPair(pemKeyPair);
-            PublicKey publicKey = new PublicKey(keyPair.getPublic());
-            PrivateKey privateKey = new PrivateKey(keyPair.getPrivate());
-            return new KeyPair(publicKey, privateKey);
-        } catch (IOException e) {
+            java.security.PublicKey jsPublicKey = null;
+            java.security.PrivateKey jsPrivateKey = null;
+
+            for (Object o = pemParser.readObject(); o != null; o = pemParser.readObject()) {
+                if (o instanceof PEMKeyPair) {
+                    return fromPemKeyPair((PEMKeyPair) o);
+                } else if (o instanceof SubjectPublicKeyInfo) {
+                    jsPublicKey = Key.toSecurityPublicKey((SubjectPublicKeyInfo) o);
+                } else if (o instanceof PKCS8EncryptedPrivateKeyInfo) {
+                    jsPrivateKey = PrivateKey.decryptPrivateKey((PKCS8EncryptedPrivateKeyInfo) o, password);
+                }
+            }
+
+            if (jsPublicKey == null || jsPrivateKey == null)
+                throw new EncryptionException("The PEM does not contain a key pair");
+
+            return new KeyPair(new PublicKey(jsPublicKey), new PrivateKey(jsPrivateKey));
+        } catch (IOException | GeneralSecurityException | PKCSException e) {
             throw new EncryptionException("Exception reading PEM", e);
         }
     }
 
+    private static KeyPair fromPemKeyPair (PEMKeyPair pemKeyPair) throws IOException, GeneralSecurityException {
+        PublicKey publicKey = new PublicKey(Key.toSecurityPublicKey(pemKeyPair.getPublicKeyInfo()));
+        PrivateKey privateKey = new PrivateKey(Key.toSecurityPrivateKey(pemKeyPair.getPrivateKeyInfo()));
+        return new KeyPair(publicKey, privateKey);
+    }
+
     public CertificateSigningRequest createCertificateSigningRequest () throws EncryptionException {
         return getPublicKey().createCertificateSigningRequest(getPrivateKey());
     }
@@ -0,0 +1,218 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of key pairs that are generated ahead of time.
+ *
+ * <p>
+ *     Generating an RSA key pair takes tens to hundreds of milliseconds.  A pool has background threads that
+ *     generate key pairs until it holds its capacity, and then wait until some are taken.  {@link #take()}
+ *     hands out a key pair that is already there, if there is one, and only generates one on the caller's
+ *     thread when the pool is empty.
+ * </p>
+ *
+ * <p>
+ *     Each key pair is handed out once.  The background threads are daemon threads; {@link #close()} stops
+ *     them.
+ * </p>
+ */
+public class KeyPairPool implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final BlockingQueue<KeyPair> keyPairs;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final long started = System.nanoTime();
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong generationTime = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean closed;
+
+    public KeyPairPool() {
+        this(DEFAULT_CAPACITY, 1);
+    }
+
+    /**
+     * Create a pool and start generating key pairs.
+     *
+     * @param capacity The most key pairs the pool holds.
+     * @param threadCount The number of background threads that generate key pairs.
+     */
+    public KeyPairPool(int capacity, int threadCount) {
+        if (capacity <= 0 || threadCount <= 0)
+            throw new IllegalArgumentException("The capacity and thread count must be positive");
+
+        this.keyPairs = new ArrayBlockingQueue<KeyPair>(capacity);
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    fill();
+                }
+            }, "clcl-key-pair-pool-" + (i + 1));
+
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Take a key pair from the pool, generating one if the pool is empty.
+     */
+    public KeyPair take() throws EncryptionException {
+        KeyPair keyPair = keyPairs.poll();
+
+        if (keyPair != null) {
+            hits.incrementAndGet();
+            return keyPair;
+        }
+
+        misses.incrementAndGet();
+        return generate();
+    }
+
+    /**
+     * Take a key pair from the pool, waiting for one to be generated if the pool is empty.
+     *
+     * @return The key pair, or null if none was ready in time.
+     */
+    public KeyPair take(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        KeyPair keyPair = keyPairs.poll(timeout, timeUnit);
+        if (keyPair != null)
+            hits.incrementAndGet();
+
+        return keyPair;
+    }
+
+    /**
+     * The number of key pairs in the pool.
+     */
+    public int getDepth() {
+        return keyPairs.size();
+    }
+
+    public int getCapacity() {
+        return keyPairs.size() + keyPairs.remainingCapacity();
+    }
+
+    /**
+     * The number of key pairs generated, both in the background and by {@link #take()}.
+     */
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     * The number of times generating a key pair in the background failed.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * The number of times {@link #take()} found a key pair in the pool.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of times {@link #take()} found the pool empty and had to generate a key pair.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The average time it takes to generate a key pair, in milliseconds.
+     */
+    public double getAverageGenerationMillis() {
+        long count = generated.get();
+        return count == 0 ? 0 : generationTime.get() / (count * 1000000.0);
+    }
+
+    /**
+     * The number of key pairs generated per second since the pool was created.
+     */
+    public double getGenerationRate() {
+        double seconds = (System.nanoTime() - started) / 1000000000.0;
+        return seconds <= 0 ? 0 : generated.get() / seconds;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop generating key pairs.  Key pairs that are already in the pool can still be taken.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    protected KeyPair generate() throws EncryptionException {
+        long start = System.nanoTime();
+        KeyPair keyPair = KeyPair.newKeys();
+        generationTime.addAndGet(System.nanoTime() - start);
+        generated.incrementAndGet();
+        return keyPair;
+    }
+
+    private void fill() {
+        while (!closed) {
+            try {
+                KeyPair keyPair = generate();
+                if (closed)
+                    return;
+
+                keyPairs.put(keyPair);
+            } catch (InterruptedException e) {
+                return;
+            } catch (EncryptionException e) {
+                //
+                // there is no one to report this to; count it, and give whatever is wrong a moment to clear up
+                // rather than spinning
+                //
+                failures.incrementAndGet();
+
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interruptedException) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -33,10 +33,18 @@ public class LDAPName {
         return key;
     }
 
+    /**
+     * Split a "key=value" pair on the first '=', so the value may itself contain '='.
+     *
+     * @throws IllegalArgumentException If there is no '=' in the name.
+     */
     public void initialize (String name) {
-        String fields[] = name.split("=");
-        this.key = fields[0].trim();
-        this.value = fields[1].trim();
+        int index = name.indexOf('=');
+        if (index == -1)
+            throw new IllegalArgumentException("Missing '=' in " + name);
+
+        this.key = name.substring(0, index).trim();
+        this.value = name.substring(index + 1).trim();
     }
 
     public String toString () {
@@ -0,0 +1,284 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import com.ltsllc.commons.util.HexConverter;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A message that is encrypted once for several recipients.
+ *
+ * <p>
+ *     The message is encrypted with a single session key, and that session key is encrypted separately
+ *     with each recipient's {@link PublicKey}.  The encrypted session keys are kept in a map from
+ *     {@link Key#getKeyId()} to encrypted session key, so a recipient finds its own with one lookup.
+ *     {@link #getKeyBytes()} is always null for this class.
+ * </p>
+ *
+ * <p>
+ *     {@link Key#decrypt(EncryptedMessage)} recognizes this class, so a recipient decrypts it the same way
+ *     as any other message.
+ * </p>
+ *
+ * <h3>Binary Format</h3>
+ * <p>
+ *     This is the same as the format of {@link EncryptedMessage}, except for the version ({@link #VERSION})
+ *     and the encrypted session key, which is replaced by the following:
+ * </p>
+ * <table border="1">
+ *     <tr><th>Field</th><th>Size</th></tr>
+ *     <tr><td>number of recipients</td><td>2 bytes</td></tr>
+ *     <tr><td>length of the key id</td><td>1 byte</td></tr>
+ *     <tr><td>key id</td><td>variable</td></tr>
+ *     <tr><td>length of the encrypted session key</td><td>4 bytes</td></tr>
+ *     <tr><td>encrypted session key</td><td>variable</td></tr>
+ *     <tr><td colspan="2">... the key id and encrypted session key repeated for each recipient</td></tr>
+ * </table>
+ */
+public class MultiRecipientMessage extends EncryptedMessage {
+    public static final int VERSION = 2;
+    public static final int MAX_RECIPIENTS = 0xFFFF;
+
+    private Map<String, byte[]> recipientKeys = new LinkedHashMap<String, byte[]>();
+
+    public MultiRecipientMessage() {}
+
+    public MultiRecipientMessage(String algorithm, Map<String, byte[]> recipientKeys, byte[] iv, byte[] messageBytes) {
+        super(algorithm, null, iv, messageBytes);
+        this.recipientKeys = new LinkedHashMap<String, byte[]>(recipientKeys);
+    }
+
+    /**
+     * The encrypted session keys, by key id.
+     */
+    public Map<String, byte[]> getRecipientKeys() {
+        return recipientKeys;
+    }
+
+    public void setRecipientKeys(Map<String, byte[]> recipientKeys) {
+        this.recipientKeys = recipientKeys;
+    }
+
+    public Set<String> getKeyIds() {
+        return recipientKeys.keySet();
+    }
+
+    /**
+     * Return the encrypted session key for a recipient, or null if the key is not a recipient.
+     */
+    public byte[] getRecipientKey(String keyId) {
+        return recipientKeys.get(keyId);
+    }
+
+    /**
+     * Encrypt a message for several recipients, encrypting the session keys on the common
+     * {@link ForkJoinPool}.
+     *
+     * @see #encrypt(String, Collection, byte[], ForkJoinPool)
+     */
+    public static MultiRecipientMessage encrypt(String algorithm, Collection<PublicKey> recipients, byte[] plainText)
+            throws EncryptionException {
+        return encrypt(algorithm, recipients, plainText, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypt a message for several recipients.
+     *
+     * <p>
+     *     The message is encrypted once.  The session key is then encrypted for each recipient; since that
+     *     is the expensive part when there are many recipients, it is done in parallel with
+     *     {@link BatchResult#process(List, BatchResult.Operation, ForkJoinPool)}.
+     * </p>
+     *
+     * @param algorithm The algorithm or {@link CipherSuite} to encrypt the message with.
+     * @param recipients The keys of the recipients.
+     * @param plainText The message.
+     * @param forkJoinPool The pool to encrypt the session keys in.
+     * @return The encrypted message.
+     * @throws EncryptionException If there is a problem encrypting the message or a session key.
+     */
+    public static MultiRecipientMessage encrypt(String algorithm, Collection<PublicKey> recipients, byte[] plainText,
+                                                ForkJoinPool forkJoinPool) throws EncryptionException {
+        if (recipients.isEmpty())
+            throw new EncryptionException("A message needs at least one recipient");
+
+        if (recipients.size() > MAX_RECIPIENTS)
+            throw new EncryptionException("Too many recipients: " + recipients.size());
+
+        SecretKey sessionKey = Key.generateSessionKey(algorithm);
+        EncryptedMessage encryptedMessage = Key.encryptWithSessionKey(algorithm, sessionKey, null, plainText);
+        final byte[] encodedSessionKey = sessionKey.getEncoded();
+
+        BatchResult<Map.Entry<String, byte[]>> batchResult = BatchResult.process(new ArrayList<PublicKey>(recipients),
+                new BatchResult.Operation<PublicKey, Map.Entry<String, byte[]>>() {
+                    @Override
+                    public Map.Entry<String, byte[]> apply(PublicKey publicKey) throws EncryptionException {
+                        return new AbstractMap.SimpleImmutableEntry<String, byte[]>(publicKey.getKeyId(),
+                                publicKey.encrypt(encodedSessionKey));
+                    }
+                }, forkJoinPool);
+
+        Map<String, byte[]> recipientKeys = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < batchResult.size(); i++) {
+            if (!batchResult.isSuccess(i))
+                throw batchResult.getFailure(i);
+
+            recipientKeys.put(batchResult.get(i).getKey(), batchResult.get(i).getValue());
+        }
+
+        return new MultiRecipientMessage(algorithm, recipientKeys, encryptedMessage.getIv(),
+                encryptedMessage.getMessageBytes());
+    }
+
+    /**
+     * Decrypt the message with a recipient's key.
+     *
+     * @param key The recipient's key; normally a {@link PrivateKey}.
+     * @return The decrypted message.
+     * @throws EncryptionException If the key is not one of the recipients or there is a problem decrypting
+     * the message.
+     */
+    public byte[] decrypt(Key key) throws EncryptionException {
+        byte[] sessionKeyCipherText = getRecipientKey(key.getKeyId());
+        if (sessionKeyCipherText == null)
+            throw new EncryptionException("The key is not a recipient of this message");
+
+        SecretKey sessionKey = key.decryptSessionKey(getAlgorithm(), sessionKeyCipherText);
+        return Key.decryptWithSessionKey(this, sessionKey);
+    }
+
+    @Override
+    public int getEncodedLength() {
+        int length = 1 + 2 + algorithmBytes().length + 2;
+
+        for (Map.Entry<String, byte[]> entry : recipientKeys.entrySet()) {
+            length += 1 + entry.getKey().length() / 2 + 4 + entry.getValue().length;
+        }
+
+        return length + 1 + nonNull(getIv()).length + 4 + nonNull(getMessageBytes()).length;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(toByteArray());
+        outputStream.flush();
+    }
+
+    @Override
+    public void writeTo(ByteBuffer byteBuffer) throws IOException {
+        writeHeaderTo(byteBuffer);
+        byteBuffer.putInt(nonNull(getMessageBytes()).length);
+        byteBuffer.put(nonNull(getMessageBytes()));
+    }
+
+    @Override
+    public void writeHeaderTo(ByteBuffer byteBuffer) throws IOException {
+        byte[] algorithmBytes = algorithmBytes();
+        byte[] ivBytes = checkIv();
+
+        if (recipientKeys.size() > MAX_RECIPIENTS)
+            throw new IOException("Too many recipients: " + recipientKeys.size());
+
+        byteBuffer.put((byte) VERSION);
+        byteBuffer.putShort((short) algorithmBytes.length);
+        byteBuffer.put(algorithmBytes);
+        byteBuffer.putShort((short) recipientKeys.size());
+
+        for (Map.Entry<String, byte[]> entry : recipientKeys.entrySet()) {
+            byte[] keyId = HexConverter.toByteArray(entry.getKey());
+            if (keyId.length > 0xFF)
+                throw new IOException("Key id is too long: " + entry.getKey());
+
+            byteBuffer.put((byte) keyId.length);
+            byteBuffer.put(keyId);
+            byteBuffer.putInt(entry.getValue().length);
+            byteBuffer.put(entry.getValue());
+        }
+
+        byteBuffer.put((byte) ivBytes.length);
+        byteBuffer.put(ivBytes);
+    }
+
+    public static MultiRecipientMessage readFrom(ByteBuffer byteBuffer) throws IOException {
+        try {
+            int version = byteBuffer.get() & 0xFF;
+            if (version != VERSION)
+                throw new IOException("Not a multi-recipient message: version " + version);
+
+            byte[] algorithmBytes = new byte[checkLength(byteBuffer.getShort() & 0xFFFF, byteBuffer.remaining())];
+            byteBuffer.get(algorithmBytes);
+
+            int count = byteBuffer.getShort() & 0xFFFF;
+            Map<String, byte[]> recipientKeys = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < count; i++) {
+                byte[] keyId = new byte[checkLength(byteBuffer.get() & 0xFF, byteBuffer.remaining())];
+                byteBuffer.get(keyId);
+                int keyLength = checkLength(byteBuffer.getInt(), Math.min(byteBuffer.remaining(), Key.MAX_SESSION_KEY_LENGTH));
+                byte[] keyBytes = new byte[keyLength];
+                byteBuffer.get(keyBytes);
+                recipientKeys.put(HexConverter.toHexString(keyId), keyBytes);
+            }
+
+            byte[] iv = new byte[checkLength(byteBuffer.get() & 0xFF, byteBuffer.remaining())];
+            byteBuffer.get(iv);
+
+            byte[] messageBytes = new byte[checkLength(byteBuffer.getInt(), byteBuffer.remaining())];
+            byteBuffer.get(messageBytes);
+
+            return new MultiRecipientMessage(new String(algorithmBytes, StandardCharsets.UTF_8), recipientKeys,
+                    iv.length == 0 ? null : iv, messageBytes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted message", e);
+        }
+    }
+
+    /**
+     * Read the rest of a message from a stream whose version has already been read.
+     */
+    static MultiRecipientMessage readAfterVersion(DataInputStream dataInputStream, int maxMessageLength)
+            throws IOException {
+        byte[] algorithmBytes = new byte[dataInputStream.readUnsignedShort()];
+        dataInputStream.readFully(algorithmBytes);
+
+        int count = dataInputStream.readUnsignedShort();
+        Map<String, byte[]> recipientKeys = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < count; i++) {
+            byte[] keyId = new byte[dataInputStream.readUnsignedByte()];
+            dataInputStream.readFully(keyId);
+            byte[] keyBytes = new byte[checkLength(dataInputStream.readInt(), Key.MAX_SESSION_KEY_LENGTH)];
+            dataInputStream.readFully(keyBytes);
+            recipientKeys.put(HexConverter.toHexString(keyId), keyBytes);
+        }
+
+        byte[] iv = new byte[dataInputStream.readUnsignedByte()];
+        dataInputStream.readFully(iv);
+
+        byte[] messageBytes = readBytes(dataInputStream, checkLength(dataInputStream.readInt(), maxMessageLength));
+
+        return new MultiRecipientMessage(new String(algorithmBytes, StandardCharsets.UTF_8), recipientKeys,
+                iv.length == 0 ? null : iv, messageBytes);
+    }
+}
@@ -20,11 +20,7 @@ package com.ltsllc.clcl;
 import com.ltsllc.commons.util.Utils;
 import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
-import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
-import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.X509v3CertificateBuilder;
 import org.bouncycastle.crypto.engines.DESedeEngine;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
@@ -34,24 +30,27 @@ import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.PEMWriter;
 import org.bouncycastle.openssl.PKCS8Generator;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.operator.*;
 import org.bouncycastle.operator.bc.BcRSAContentSignerBuilder;
 import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.bouncycastle.pkcs.PKCSException;
 import org.bouncycastle.pkcs.bc.BcPKCS12PBEInputDecryptorProviderBuilder;
 import org.bouncycastle.pkcs.bc.BcPKCS12PBEOutputEncryptorBuilder;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
 import java.io.*;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
+import java.security.KeyFactory;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.ECPoint;
+import java.security.spec.RSAPublicKeySpec;
 import java.util.Date;
-import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by Clark on 4/3/2017.
@@ -92,13 +91,25 @@ import java.util.UUID;
  * An instance should always have one of these.
  * </td>
  * </tr>
+ *
+ * <tr>
+ * <td>sessionKeyCache</td>
+ * <td>SessionKeyCache</td>
+ * <td>
+ * An optional cache of decrypted session keys.  When it is null (the default) every
+ * session key is decrypted.
+ * </td>
+ * </tr>
  * </table>
  */
 public class PrivateKey extends Key {
     public static final String ALGORITHM = "RSA";
+    public static final String EC_ALGORITHM = "EC";
     public static final String SESSION_ALGORITHM = "AES";
 
     private java.security.PrivateKey securityPrivateKey;
+    private transient SessionKeyCache sessionKeyCache;
+    private transient String keyId;
 
     public static void writePemFile(String filename, java.security.PrivateKey privateKey) throws IOException {
         StringWriter stringWriter = new StringWriter();
@@ -119,7 +130,98 @@ public class PrivateKey extends Key {
 
     @Override
     public String getSessionAlgorithm() {
-        return SESSION_ALGORITHM;
+        return getCipherSuite() == null ? SESSION_ALGORITHM : getCipherSuite();
+    }
+
+    /**
+     * The id of this key, which is the id of the corresponding {@link PublicKey}.
+     *
+     * <p>
+     * For RSA, the public key is rebuilt from the modulus and public exponent, so this only works for RSA
+     * keys that carry them (which is what the JCE and PEM files produce).  For elliptic curve keys, the
+     * public point is computed from the private value.
+     * </p>
+     */
+    @Override
+    public String getKeyId() throws EncryptionException {
+        if (keyId != null)
+            return keyId;
+
+        if (getSecurityPrivateKey() instanceof ECPrivateKey) {
+            ECPrivateKey ecPrivateKey = (ECPrivateKey) getSecurityPrivateKey();
+            org.bouncycastle.jce.spec.ECParameterSpec bcSpec = toBouncyCastleKey(ecPrivateKey).getParameters();
+            org.bouncycastle.math.ec.ECPoint point = bcSpec.getG().multiply(ecPrivateKey.getS()).normalize();
+            ECPoint publicPoint = new ECPoint(point.getAffineXCoord().toBigInteger(),
+                    point.getAffineYCoord().toBigInteger());
+
+            keyId = toKeyId(publicPoint, ecPrivateKey.getParams());
+            return keyId;
+        }
+
+        if (!(getSecurityPrivateKey() instanceof RSAPrivateCrtKey))
+            throw new EncryptionException("Cannot compute the key id of this private key");
+
+        try {
+            RSAPrivateCrtKey rsaPrivateCrtKey = (RSAPrivateCrtKey) getSecurityPrivateKey();
+            RSAPublicKeySpec rsaPublicKeySpec = new RSAPublicKeySpec(rsaPrivateCrtKey.getModulus(),
+                    rsaPrivateCrtKey.getPublicExponent());
+            java.security.PublicKey publicKey = KeyFactory.getInstance(ALGORITHM).generatePublic(rsaPublicKeySpec);
+            keyId = toKeyId(publicKey.getEncoded());
+            return keyId;
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to compute key id", e);
+        }
+    }
+
+    /**
+     * Return an elliptic curve key as a {@link BouncyCastleProvider} key, whose curve parameters can be
+     * used with the bouncy castle math classes.
+     */
+    private org.bouncycastle.jce.interfaces.ECPrivateKey toBouncyCastleKey(ECPrivateKey ecPrivateKey)
+            throws EncryptionException {
+        if (ecPrivateKey instanceof org.bouncycastle.jce.interfaces.ECPrivateKey)
+            return (org.bouncycastle.jce.interfaces.ECPrivateKey) ecPrivateKey;
+
+        try {
+            checkProviders();
+            KeyFactory keyFactory = KeyFactory.getInstance(EC_ALGORITHM, BouncyCastleProvider.PROVIDER_NAME);
+            return (org.bouncycastle.jce.interfaces.ECPrivateKey) keyFactory.translateKey(ecPrivateKey);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to compute key id", e);
+        }
+    }
+
+    public SessionKeyCache getSessionKeyCache() {
+        return sessionKeyCache;
+    }
+
+    /**
+     * Use a cache of decrypted session keys.
+     *
+     * <p>
+     * With a cache, messages that share a session key only pay for the private key operation once.
+     * Passing null turns caching off.
+     * </p>
+     *
+     * @param sessionKeyCache The cache to use, or null.
+     */
+    public void setSessionKeyCache(SessionKeyCache sessionKeyCache) {
+        this.sessionKeyCache = sessionKeyCache;
+    }
+
+    @Override
+    public SecretKey decryptSessionKey(String algorithm, byte[] sessionKeyCipherText) throws EncryptionException {
+        SessionKeyCache cache = getSessionKeyCache();
+        if (cache == null)
+            return super.decryptSessionKey(algorithm, sessionKeyCipherText);
+
+        SecretKey sessionKey = cache.get(algorithm, sessionKeyCipherText);
+        if (sessionKey == null) {
+            sessionKey = super.decryptSessionKey(algorithm, sessionKeyCipherText);
+            cache.put(algorithm, sessionKeyCipherText, sessionKey);
+        }
+
+        return sessionKey;
     }
 
     /**
@@ -136,14 +238,10 @@ public class PrivateKey extends Key {
     @Override
     public byte[] encrypt(byte[] plainText) throws EncryptionException {
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            Cipher cipher = getKeyCipher(getSecurityPrivateKey());
             cipher.init(Cipher.ENCRYPT_MODE, getSecurityPrivateKey());
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(byteArrayOutputStream, cipher);
-            cipherOutputStream.write(plainText);
-            cipherOutputStream.close();
-            return byteArrayOutputStream.toByteArray();
-        } catch (GeneralSecurityException | IOException e) {
+            return cipher.doFinal(plainText);
+        } catch (GeneralSecurityException e) {
             throw new EncryptionException("Exception trying to encrypt", e);
         }
     }
@@ -151,14 +249,10 @@ public class PrivateKey extends Key {
     @Override
     public byte[] decrypt(byte[] cipherText) throws EncryptionException {
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            Cipher cipher = getKeyCipher(getSecurityPrivateKey());
             cipher.init(Cipher.DECRYPT_MODE, getSecurityPrivateKey());
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(byteArrayOutputStream, cipher);
-            cipherOutputStream.write(cipherText);
-            cipherOutputStream.close();
-            return byteArrayOutputStream.toByteArray();
-        } catch (GeneralSecurityException | IOException e) {
+            return cipher.doFinal(cipherText);
+        } catch (GeneralSecurityException e) {
             throw new EncryptionException("Exception trying to decrypt", e);
         }
     }
@@ -209,83 +303,158 @@ public class PrivateKey extends Key {
             PKCS8EncryptedPrivateKeyInfo pkcs8EncryptedPrivateKeyInfo =
                     (PKCS8EncryptedPrivateKeyInfo) o;
 
-            BcPKCS12PBEInputDecryptorProviderBuilder bcPKCS12PBEInputDecryptorProviderBuilder =
-                    new BcPKCS12PBEInputDecryptorProviderBuilder();
-
-            InputDecryptorProvider inputDecryptorProvider =
-                    bcPKCS12PBEInputDecryptorProviderBuilder.build(passwordString.toCharArray());
-
-            PrivateKeyInfo privateKeyInfo = pkcs8EncryptedPrivateKeyInfo.decryptPrivateKeyInfo(inputDecryptorProvider);
-
-            JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider(new BouncyCastleProvider());
-            java.security.PrivateKey jsPrivateKey = (RSAPrivateCrtKey) converter.getPrivateKey(privateKeyInfo);
-            return new PrivateKey(jsPrivateKey);
+            return new PrivateKey(decryptPrivateKey(pkcs8EncryptedPrivateKeyInfo, passwordString));
         } catch (Exception e) {
             throw new EncryptionException("Exception trying to convert private key to PEM", e);
         }
     }
 
-    public static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    /**
+     * Decrypt a private key that was written by {@link #toPem(String)}.
+     */
+    static java.security.PrivateKey decryptPrivateKey(PKCS8EncryptedPrivateKeyInfo pkcs8EncryptedPrivateKeyInfo,
+                                                      String passwordString)
+            throws IOException, GeneralSecurityException, PKCSException {
+        BcPKCS12PBEInputDecryptorProviderBuilder bcPKCS12PBEInputDecryptorProviderBuilder =
+                new BcPKCS12PBEInputDecryptorProviderBuilder();
 
-    public BigInteger createSerialNumber() throws EncryptionException {
-        try {
-            byte[] bytes = UUID.randomUUID().toString().getBytes();
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            byteArrayOutputStream.write(bytes);
-            byteArrayOutputStream.close();
+        InputDecryptorProvider inputDecryptorProvider =
+                bcPKCS12PBEInputDecryptorProviderBuilder.build(passwordString.toCharArray());
 
-            bytes = byteArrayOutputStream.toByteArray();
+        PrivateKeyInfo privateKeyInfo = pkcs8EncryptedPrivateKeyInfo.decryptPrivateKeyInfo(inputDecryptorProvider);
+        return toSecurityPrivateKey(privateKeyInfo);
+    }
 
-            return new BigInteger(bytes);
-        } catch (IOException e) {
-            throw new EncryptionException("Exception creating serial number", e);
+    /**
+     * Create a detached signature for a message.
+     *
+     * <p>
+     *     The signature uses {@link #getMessageSignatureAlgorithm(java.security.Key)} and can be checked with
+     *     {@link PublicKey#verify(byte[], byte[])}.  The signature engine comes from {@link CryptoEngines},
+     *     so signing many messages on one thread only creates one engine.
+     * </p>
+     *
+     * @param message The message to sign.
+     * @return The signature.
+     * @throws EncryptionException If there is a problem signing the message.
+     */
+    public byte[] sign(byte[] message) throws EncryptionException {
+        try {
+            Signature signature = getSigningSignature();
+            signature.update(message);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to sign", e);
         }
     }
 
-    public Certificate sign(CertificateSigningRequest certificateSigningRequest, Date notValidBefore,
-                            Date notValidAfter) throws EncryptionException {
+    /**
+     * Create a detached signature for the rest of a stream.
+     *
+     * <p>
+     *     The stream is read {@link #STREAM_BUFFER_SIZE} bytes at a time, so it can be larger than memory.
+     *     The stream is not closed.
+     * </p>
+     *
+     * @see #sign(byte[])
+     */
+    public byte[] sign(InputStream inputStream) throws EncryptionException {
         try {
-            AlgorithmIdentifier sigAlgId = new DefaultSignatureAlgorithmIdentifierFinder().find(SIGNATURE_ALGORITHM);
-            AlgorithmIdentifier digAlgId = new DefaultDigestAlgorithmIdentifierFinder().find(sigAlgId);
+            Signature signature = getSigningSignature();
+            update(signature, inputStream);
+            return signature.sign();
+        } catch (GeneralSecurityException | IOException e) {
+            throw new EncryptionException("Exception trying to sign", e);
+        }
+    }
 
-            AsymmetricKeyParameter asymmetricKeyParameter = PrivateKeyFactory.
-                    createKey(getSecurityPrivateKey().getEncoded());
+    private Signature getSigningSignature() throws GeneralSecurityException {
+        Signature signature = CryptoEngines.getSignature(getMessageSignatureAlgorithm(getSecurityPrivateKey()));
+        signature.initSign(getSecurityPrivateKey());
+        return signature;
+    }
 
-            SubjectPublicKeyInfo keyInfo = SubjectPublicKeyInfo.getInstance(certificateSigningRequest.getPkcs10().
-                    getSubjectPublicKeyInfo().getEncoded());
+    public static final String SIGNATURE_ALGORITHM = RSA_SIGNATURE_ALGORITHM;
 
-            X500Name issuer = new X500Name(getDn().toString());
-            X500Name subject = new X500Name(certificateSigningRequest.getSubjectDn().toString());
-            BigInteger serialNumber = createSerialNumber();
-            X509v3CertificateBuilder myCertificateGenerator = new X509v3CertificateBuilder(issuer, serialNumber,
-                    notValidBefore, notValidAfter, subject, keyInfo);
+    private static final SerialNumberAllocator serialNumberAllocator = new RandomSerialNumberAllocator();
 
-            ContentSigner sigGen = new BcRSAContentSignerBuilder(sigAlgId, digAlgId).build(asymmetricKeyParameter);
+    /**
+     * Create a random serial number for a certificate.
+     *
+     * @see RandomSerialNumberAllocator
+     */
+    public BigInteger createSerialNumber() throws EncryptionException {
+        return serialNumberAllocator.next();
+    }
 
-            X509CertificateHolder holder = myCertificateGenerator.build(sigGen);
-            org.bouncycastle.asn1.x509.Certificate certificate = holder.toASN1Structure();
+    /**
+     * Sign a certificate signing request on the {@link #getCryptoExecutor()}.
+     *
+     * @see #sign(CertificateSigningRequest, Date, Date)
+     */
+    public CompletableFuture<Certificate> signAsync(final CertificateSigningRequest certificateSigningRequest,
+                                                    final Date notValidBefore, final Date notValidAfter) {
+        return getCryptoExecutor().submit(new Callable<Certificate>() {
+            @Override
+            public Certificate call() throws EncryptionException {
+                return sign(certificateSigningRequest, notValidBefore, notValidAfter);
+            }
+        });
+    }
 
-            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509", new BouncyCastleProvider());
+    /**
+     * Issue a certificate for a certificate signing request.
+     *
+     * <p>
+     *     This sets up a signer for each certificate; callers that issue many certificates should create a
+     *     {@link CertificateAuthority} and keep it.
+     * </p>
+     */
+    public Certificate sign(CertificateSigningRequest certificateSigningRequest, Date notValidBefore,
+                            Date notValidAfter) throws EncryptionException {
+        return CertificateAuthority.issueOnce(this, createSerialNumber(), certificateSigningRequest, notValidBefore,
+                notValidAfter);
+    }
 
-            InputStream inputStream = new ByteArrayInputStream(certificate.getEncoded());
-            X509Certificate x509Certificate = (X509Certificate) certificateFactory.generateCertificate(inputStream);
-            return new Certificate(x509Certificate);
-        } catch (IOException | OperatorException | CertificateException e) {
-            throw new EncryptionException("Exception trying to sign CSR", e);
+    /**
+     * Create a signer for certificates issued with this key.
+     *
+     * <p>
+     * RSA keys sign with {@link #SIGNATURE_ALGORITHM}; elliptic curve keys sign with
+     * {@link #EC_SIGNATURE_ALGORITHM}.
+     * </p>
+     */
+    public ContentSigner createContentSigner() throws IOException, OperatorException {
+        if (isEllipticCurve(getSecurityPrivateKey())) {
+            try {
+                return new SignatureContentSigner(EC_SIGNATURE_ALGORITHM, getSecurityPrivateKey());
+            } catch (GeneralSecurityException e) {
+                throw new OperatorCreationException("Exception trying to create signer", e);
+            }
         }
-    }
 
+        AlgorithmIdentifier sigAlgId = new DefaultSignatureAlgorithmIdentifierFinder().find(SIGNATURE_ALGORITHM);
+        AlgorithmIdentifier digAlgId = new DefaultDigestAlgorithmIdentifierFinder().find(sigAlgId);
+
+        AsymmetricKeyParameter asymmetricKeyParameter = PrivateKeyFactory.
+                createKey(getSecurityPrivateKey().getEncoded());
+
+        return new BcRSAContentSignerBuilder(sigAlgId, digAlgId).build(asymmetricKeyParameter);
+    }
 
     public static PrivateKey fromPEM(String pem) throws EncryptionException {
         try {
             StringReader stringReader = new StringReader(pem);
             PEMParser parser = new PEMParser(stringReader);
-            PEMKeyPair pemKeyPair = (PEMKeyPair) parser.readObject();
-            JcaPEMKeyConverter jcaPEMKeyConverter = new JcaPEMKeyConverter();
-            jcaPEMKeyConverter.setProvider(new BouncyCastleProvider());
-            java.security.PrivateKey privateKey = jcaPEMKeyConverter.getPrivateKey(pemKeyPair.getPrivateKeyInfo());
-            return new PrivateKey(privateKey);
-        } catch (IOException e) {
+            Object o = parser.readObject();
+
+            // RSA and elliptic curve keys are written with their public keys, PKCS#8 keys are not
+            PrivateKeyInfo privateKeyInfo = o instanceof PEMKeyPair
+                    ? ((PEMKeyPair) o).getPrivateKeyInfo()
+                    : (PrivateKeyInfo) o;
+
+            return new PrivateKey(toSecurityPrivateKey(privateKeyInfo));
+        } catch (IOException | GeneralSecurityException e) {
             throw new EncryptionException("Exception trying to convert PEM to private key", e);
         }
     }
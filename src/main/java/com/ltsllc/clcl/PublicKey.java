@@ -19,27 +19,30 @@ package com.ltsllc.clcl;
 
 import com.ltsllc.commons.util.Utils;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.PEMWriter;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by Clark on 4/2/2017.
  */
 public class PublicKey extends Key {
     public static final String ALGORITHM = "RSA";
+    public static final String EC_ALGORITHM = "EC";
     public static final String SESSION_ALGORITHM = "AES";
 
     private java.security.PublicKey securityPublicKey;
+    private transient String keyId;
 
 
     public java.security.PublicKey getSecurityPublicKey() {
@@ -53,23 +56,16 @@ public class PublicKey extends Key {
 
     @Override
     public String getSessionAlgorithm() {
-        return SESSION_ALGORITHM;
+        return getCipherSuite() == null ? SESSION_ALGORITHM : getCipherSuite();
     }
 
     @Override
     public byte[] encrypt(byte[] plainText) throws EncryptionException {
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            Cipher cipher = getKeyCipher(getSecurityPublicKey());
             cipher.init(Cipher.ENCRYPT_MODE, getSecurityPublicKey());
-
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(byteArrayOutputStream, cipher);
-
-            cipherOutputStream.write(plainText);
-            cipherOutputStream.close();
-
-            return byteArrayOutputStream.toByteArray();
-        } catch (GeneralSecurityException | IOException e) {
+            return cipher.doFinal(plainText);
+        } catch (GeneralSecurityException e) {
             throw new EncryptionException("Exception trying to decrypt", e);
         }
     }
@@ -78,23 +74,102 @@ public class PublicKey extends Key {
     @Override
     public byte[] decrypt(byte[] cipherText) throws EncryptionException {
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            Cipher cipher = getKeyCipher(getSecurityPublicKey());
             cipher.init(Cipher.DECRYPT_MODE, getSecurityPublicKey());
+            return cipher.doFinal(cipherText);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to decrypt", e);
+        }
+    }
+
+    @Override
+    public String getKeyId() throws EncryptionException {
+        if (keyId == null && getSecurityPublicKey() instanceof ECPublicKey) {
+            ECPublicKey ecPublicKey = (ECPublicKey) getSecurityPublicKey();
+            keyId = toKeyId(ecPublicKey.getW(), ecPublicKey.getParams());
+        } else if (keyId == null) {
+            keyId = toKeyId(getSecurityPublicKey().getEncoded());
+        }
 
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(byteArrayOutputStream, cipher);
+        return keyId;
+    }
 
-            cipherOutputStream.write(cipherText);
-            cipherOutputStream.close();
+    /**
+     * Check a signature created by {@link PrivateKey#sign(byte[])}.
+     *
+     * @param message The message that was signed.
+     * @param signature The signature.
+     * @return true if the signature is valid for the message and this key, false otherwise.
+     * @throws EncryptionException If the signature cannot be checked, for example because it is malformed.
+     */
+    public boolean verify(byte[] message, byte[] signature) throws EncryptionException {
+        try {
+            Signature verifier = getVerifyingSignature();
+            verifier.update(message);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to verify signature", e);
+        }
+    }
 
-            return byteArrayOutputStream.toByteArray();
+    /**
+     * Check a signature for the rest of a stream, created by {@link PrivateKey#sign(InputStream)}.
+     *
+     * <p>
+     *     The stream is not closed.
+     * </p>
+     *
+     * @see #verify(byte[], byte[])
+     */
+    public boolean verify(InputStream inputStream, byte[] signature) throws EncryptionException {
+        try {
+            Signature verifier = getVerifyingSignature();
+            update(verifier, inputStream);
+            return verifier.verify(signature);
         } catch (GeneralSecurityException | IOException e) {
-            throw new EncryptionException("Exception trying to decrypt", e);
+            throw new EncryptionException("Exception trying to verify signature", e);
         }
     }
 
+    /**
+     * Check a batch of signatures on the common {@link ForkJoinPool}.
+     *
+     * @see #verifyAll(List, ForkJoinPool)
+     */
+    public BatchResult<Boolean> verifyAll(List<SignedMessage> signedMessages) {
+        return verifyAll(signedMessages, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Check a batch of signatures in parallel.
+     *
+     * <p>
+     *     Each worker thread uses its own signature engine from {@link CryptoEngines}.  The result for a
+     *     message is whether its signature is valid; a signature that cannot be checked at all is a failure
+     *     for that message alone.
+     * </p>
+     *
+     * @param signedMessages The messages and their signatures.
+     * @param forkJoinPool Where to do the work.
+     * @return Whether each signature is valid, in the same order as the messages.
+     */
+    public BatchResult<Boolean> verifyAll(List<SignedMessage> signedMessages, ForkJoinPool forkJoinPool) {
+        return BatchResult.process(signedMessages, new BatchResult.Operation<SignedMessage, Boolean>() {
+            @Override
+            public Boolean apply(SignedMessage signedMessage) throws EncryptionException {
+                return verify(signedMessage.getMessage(), signedMessage.getSignature());
+            }
+        }, forkJoinPool);
+    }
+
+    private Signature getVerifyingSignature() throws GeneralSecurityException {
+        Signature signature = CryptoEngines.getSignature(getMessageSignatureAlgorithm(getSecurityPublicKey()));
+        signature.initVerify(getSecurityPublicKey());
+        return signature;
+    }
+
     public EncryptedMessage toEncryptedMessage(byte[] plainText) throws EncryptionException {
-        return encrypt(SESSION_ALGORITHM, plainText);
+        return encrypt(getSessionAlgorithm(), plainText);
     }
 
     public CertificateSigningRequest createCertificateSigningRequest(PrivateKey privateKey) throws EncryptionException {
@@ -120,11 +195,9 @@ public class PublicKey extends Key {
             StringReader stringReader = new StringReader(pem);
             PEMParser pemParser = new PEMParser(stringReader);
             SubjectPublicKeyInfo subjectPublicKeyInfo = (SubjectPublicKeyInfo) pemParser.readObject();
-            JcaPEMKeyConverter jcaPEMKeyConverter = new JcaPEMKeyConverter();
-            jcaPEMKeyConverter.setProvider(new BouncyCastleProvider());
-            java.security.PublicKey jsPublicKey = jcaPEMKeyConverter.getPublicKey(subjectPublicKeyInfo);
+            java.security.PublicKey jsPublicKey = toSecurityPublicKey(subjectPublicKeyInfo);
             return new PublicKey(jsPublicKey);
-        } catch (IOException e) {
+        } catch (IOException | GeneralSecurityException e) {
             throw new EncryptionException("Exception reading PEM", e);
         }
     }
@@ -134,10 +207,8 @@ public class PublicKey extends Key {
             StringReader stringReader = new StringReader(pem);
             PEMParser pemParser = new PEMParser(stringReader);
             SubjectPublicKeyInfo subjectPublicKeyInfo = (SubjectPublicKeyInfo) pemParser.readObject();
-            JcaPEMKeyConverter jcaPEMKeyConverter = new JcaPEMKeyConverter();
-            jcaPEMKeyConverter.setProvider(new BouncyCastleProvider());
-            return jcaPEMKeyConverter.getPublicKey(subjectPublicKeyInfo);
-        } catch (IOException e) {
+            return toSecurityPublicKey(subjectPublicKeyInfo);
+        } catch (IOException | GeneralSecurityException e) {
             throw new EncryptionException("Exception reading PEM", e);
         }
     }
@@ -0,0 +1,79 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * A {@link SerialNumberAllocator} that returns random serial numbers.
+ *
+ * <p>
+ *     With at least 64 random bits, the chance of two certificates getting the same serial number is
+ *     negligible, and nothing needs to be remembered between runs.  Each thread has its own
+ *     {@link SecureRandom}, so threads do not wait on each other.
+ * </p>
+ */
+public class RandomSerialNumberAllocator implements SerialNumberAllocator {
+    public static final int MIN_BITS = 64;
+
+    /**
+     * The most bits that still fit, as a positive number, in the 20 bytes RFC 5280 allows.
+     */
+    public static final int MAX_BITS = 159;
+
+    public static final int DEFAULT_BITS = MAX_BITS;
+
+    private static final ThreadLocal<SecureRandom> secureRandoms = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private int bits;
+
+    public RandomSerialNumberAllocator () {
+        this(DEFAULT_BITS);
+    }
+
+    /**
+     * @param bits How many random bits each serial number has, from {@link #MIN_BITS} to {@link #MAX_BITS}.
+     */
+    public RandomSerialNumberAllocator (int bits) {
+        if (bits < MIN_BITS || bits > MAX_BITS)
+            throw new IllegalArgumentException("bits must be between " + MIN_BITS + " and " + MAX_BITS + ": " + bits);
+
+        this.bits = bits;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    @Override
+    public BigInteger next () {
+        BigInteger serialNumber;
+
+        do {
+            serialNumber = new BigInteger(getBits(), secureRandoms.get());
+        } while (serialNumber.signum() == 0);
+
+        return serialNumber;
+    }
+}
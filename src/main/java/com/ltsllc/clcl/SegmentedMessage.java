@@ -0,0 +1,418 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A large message that is encrypted in segments, so that it can be encrypted and decrypted on several
+ * cores at once.
+ *
+ * <p>
+ *     The plain text is split into segments of {@link #getSegmentSize()} bytes (the last one may be
+ *     shorter) and each segment is encrypted separately, under the same session key, with an authenticated
+ *     {@link JceCipherSuite} such as {@link CipherSuite#AES_GCM}.  The cipher text is the encrypted segments,
+ *     each followed by its authentication tag, one after the other.
+ * </p>
+ *
+ * <p>
+ *     Each segment has its own nonce: the initialization vector of the message with the index of the segment
+ *     XORed into its last four bytes.  The index, and whether the segment is the last one, are also
+ *     authenticated with the segment so that segments cannot be reordered, dropped or cut off without
+ *     the decryption failing.
+ * </p>
+ *
+ * <p>
+ *     {@link Key#decrypt(EncryptedMessage)} recognizes this class and decrypts the segments in parallel.
+ * </p>
+ *
+ * <h3>Binary Format</h3>
+ * <p>
+ *     The version ({@link #VERSION}) is followed by the segment size (4 bytes) and then the rest of the
+ *     format of {@link EncryptedMessage}.
+ * </p>
+ */
+public class SegmentedMessage extends EncryptedMessage {
+    public static final int VERSION = 3;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final String DEFAULT_ALGORITHM = CipherSuite.AES_GCM;
+
+    /**
+     * The largest header {@link #readHeaderFrom(ByteBuffer)} can read.
+     */
+    public static final int MAX_HEADER_LENGTH = 1 + 4 + 2 + 0xFFFF + 4 + Key.MAX_SESSION_KEY_LENGTH + 1 + MAX_IV_LENGTH;
+
+    /**
+     * The largest number of segments in a message: the segment index has to fit in four bytes of the nonce.
+     */
+    public static final long MAX_SEGMENTS = 1L << 32;
+
+    private int segmentSize;
+
+    public SegmentedMessage() {}
+
+    public SegmentedMessage(String algorithm, byte[] keyBytes, byte[] iv, byte[] messageBytes, int segmentSize) {
+        super(algorithm, keyBytes, iv, messageBytes);
+        this.segmentSize = segmentSize;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Encrypt a message in segments.
+     *
+     * @param key The key to encrypt the session key with.
+     * @param algorithm An authenticated {@link JceCipherSuite}, such as {@link CipherSuite#AES_GCM}.
+     * @param plainText The message.
+     * @param segmentSize The size of each segment.
+     * @param forkJoinPool The pool to encrypt the segments in.
+     * @return The encrypted message.
+     * @throws EncryptionException If there is a problem encrypting the message.
+     */
+    public static SegmentedMessage encrypt(Key key, String algorithm, byte[] plainText, int segmentSize,
+                                           ForkJoinPool forkJoinPool) throws EncryptionException {
+        JceCipherSuite cipherSuite = getCipherSuite(algorithm);
+        long segments = getSegmentCount(plainText.length, segmentSize);
+        long length = plainText.length + segments * cipherSuite.getTagLength();
+        if (length > Integer.MAX_VALUE - 8)
+            throw new EncryptionException("Message is too large to encrypt in memory: " + plainText.length);
+
+        SecretKey sessionKey = cipherSuite.generateKey();
+        byte[] sessionKeyCipherText = key.encrypt(sessionKey.getEncoded());
+        byte[] iv = cipherSuite.newIv();
+        byte[] cipherText = new byte[(int) length];
+
+        encryptSegments(cipherSuite, sessionKey, iv, segmentSize, ByteBuffer.wrap(plainText),
+                ByteBuffer.wrap(cipherText), 0, true, forkJoinPool);
+
+        return new SegmentedMessage(algorithm, sessionKeyCipherText, iv, cipherText, segmentSize);
+    }
+
+    /**
+     * Decrypt the message.
+     *
+     * @param sessionKey The session key, already decrypted.
+     * @param forkJoinPool The pool to decrypt the segments in.
+     * @return The plain text.
+     * @throws EncryptionException If the message has been tampered with or there is some other problem
+     * decrypting it.
+     */
+    public byte[] decrypt(SecretKey sessionKey, ForkJoinPool forkJoinPool) throws EncryptionException {
+        JceCipherSuite cipherSuite = getCipherSuite(getAlgorithm());
+        byte[] cipherText = getMessageBytes();
+
+        long plainTextLength = getPlainTextLength(cipherSuite, getSegmentSize(), cipherText.length);
+        byte[] plainText = new byte[(int) plainTextLength];
+
+        decryptSegments(cipherSuite, sessionKey, getIv(), getSegmentSize(), ByteBuffer.wrap(cipherText),
+                ByteBuffer.wrap(plainText), 0, true, forkJoinPool);
+
+        return plainText;
+    }
+
+    /**
+     * Work out how long the plain text of a segmented message is from the length of its cipher text.
+     *
+     * @throws EncryptionException If no message of that length could have been written.
+     */
+    public static long getPlainTextLength(JceCipherSuite cipherSuite, int segmentSize, long cipherTextLength)
+            throws EncryptionException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE)
+            throw new EncryptionException("Invalid segment size: " + segmentSize);
+
+        int segmentLength = segmentSize + cipherSuite.getTagLength();
+        long segments = Math.max(1, (cipherTextLength + segmentLength - 1) / segmentLength);
+        long lastLength = cipherTextLength - (segments - 1) * segmentLength;
+        if (lastLength < cipherSuite.getTagLength())
+            throw new EncryptionException("Truncated segmented message");
+
+        return cipherTextLength - segments * cipherSuite.getTagLength();
+    }
+
+    /**
+     * Return the suite for an algorithm, which must be an authenticated {@link JceCipherSuite}.
+     */
+    public static JceCipherSuite getCipherSuite(String algorithm) throws EncryptionException {
+        CipherSuite cipherSuite = CipherSuite.getCipherSuite(algorithm);
+        if (!(cipherSuite instanceof JceCipherSuite) || ((JceCipherSuite) cipherSuite).getTagLength() == 0
+                || cipherSuite.getIvLength() < 4)
+            throw new EncryptionException("Segmented messages need an authenticated cipher suite, not " + algorithm);
+
+        return (JceCipherSuite) cipherSuite;
+    }
+
+    /**
+     * The number of segments a message of a given length is split into.  Even an empty message has one.
+     */
+    public static long getSegmentCount(long plainTextLength, int segmentSize) throws EncryptionException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE)
+            throw new EncryptionException("Invalid segment size: " + segmentSize);
+
+        long segments = Math.max(1, (plainTextLength + segmentSize - 1) / segmentSize);
+        if (segments > MAX_SEGMENTS)
+            throw new EncryptionException("Message has too many segments: " + segments);
+
+        return segments;
+    }
+
+    /**
+     * Encrypt a run of segments from one buffer into another.
+     *
+     * <p>
+     *     The remaining bytes of the plain text buffer are split into segments, the first of which has the
+     *     index firstSegment.  The encrypted segments are written starting at the position of the cipher
+     *     text buffer.  The positions of the buffers are not changed.  This allows a message that is too
+     *     large for one buffer to be encrypted in several runs, so long as every run but the last is a
+     *     whole number of segments.
+     * </p>
+     *
+     * @param containsLast Whether the run ends with the last segment of the message.
+     */
+    public static void encryptSegments(JceCipherSuite cipherSuite, SecretKey sessionKey, byte[] iv, int segmentSize,
+                                       ByteBuffer plainText, ByteBuffer cipherText, long firstSegment,
+                                       boolean containsLast, ForkJoinPool forkJoinPool) throws EncryptionException {
+        int segments = (int) getSegmentCount(plainText.remaining(), segmentSize);
+        process(new SegmentTask(true, cipherSuite, sessionKey, iv, segmentSize, plainText, cipherText,
+                firstSegment, segments, containsLast), forkJoinPool);
+    }
+
+    /**
+     * Decrypt a run of segments from one buffer into another.
+     *
+     * @see #encryptSegments(JceCipherSuite, SecretKey, byte[], int, ByteBuffer, ByteBuffer, long, boolean, ForkJoinPool)
+     */
+    public static void decryptSegments(JceCipherSuite cipherSuite, SecretKey sessionKey, byte[] iv, int segmentSize,
+                                       ByteBuffer cipherText, ByteBuffer plainText, long firstSegment,
+                                       boolean containsLast, ForkJoinPool forkJoinPool) throws EncryptionException {
+        int segmentLength = segmentSize + cipherSuite.getTagLength();
+        int segments = (int) Math.max(1, (cipherText.remaining() + (long) segmentLength - 1) / segmentLength);
+        process(new SegmentTask(false, cipherSuite, sessionKey, iv, segmentSize, cipherText, plainText,
+                firstSegment, segments, containsLast), forkJoinPool);
+    }
+
+    private static void process(SegmentTask segmentTask, ForkJoinPool forkJoinPool) throws EncryptionException {
+        if (segmentTask.firstSegment + segmentTask.segments > MAX_SEGMENTS)
+            throw new EncryptionException("Message has too many segments");
+
+        forkJoinPool.invoke(segmentTask);
+
+        GeneralSecurityException exception = segmentTask.failure.get();
+        if (exception != null)
+            throw new EncryptionException("Exception trying to " + (segmentTask.encrypt ? "encrypt" : "decrypt")
+                    + " segment", exception);
+    }
+
+    /**
+     * Return the nonce for a segment.
+     */
+    public static byte[] getSegmentNonce(byte[] iv, long segment) {
+        byte[] nonce = iv.clone();
+        int index = (int) segment;
+
+        nonce[nonce.length - 4] ^= (byte) (index >>> 24);
+        nonce[nonce.length - 3] ^= (byte) (index >>> 16);
+        nonce[nonce.length - 2] ^= (byte) (index >>> 8);
+        nonce[nonce.length - 1] ^= (byte) index;
+
+        return nonce;
+    }
+
+    /**
+     * Return the additional authenticated data for a segment.
+     */
+    public static byte[] getSegmentData(long segment, boolean last) {
+        return ByteBuffer.allocate(9).putLong(segment).put((byte) (last ? 1 : 0)).array();
+    }
+
+    /**
+     * Encrypts or decrypts a range of segments, splitting the range in half until there is one segment left.
+     */
+    private static class SegmentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean encrypt;
+        private final JceCipherSuite cipherSuite;
+        private final SecretKey sessionKey;
+        private final byte[] iv;
+        private final int segmentSize;
+        private final ByteBuffer input;
+        private final ByteBuffer output;
+        private final long firstSegment;
+        private final int segments;
+        private final boolean containsLast;
+        private final AtomicReference<GeneralSecurityException> failure;
+        private final int low;
+        private final int high;
+
+        public SegmentTask(boolean encrypt, JceCipherSuite cipherSuite, SecretKey sessionKey, byte[] iv,
+                           int segmentSize, ByteBuffer input, ByteBuffer output, long firstSegment, int segments,
+                           boolean containsLast) {
+            this(encrypt, cipherSuite, sessionKey, iv, segmentSize, input.duplicate(), output.duplicate(),
+                    firstSegment, segments, containsLast, new AtomicReference<GeneralSecurityException>(), 0,
+                    segments);
+        }
+
+        private SegmentTask(boolean encrypt, JceCipherSuite cipherSuite, SecretKey sessionKey, byte[] iv,
+                            int segmentSize, ByteBuffer input, ByteBuffer output, long firstSegment, int segments,
+                            boolean containsLast, AtomicReference<GeneralSecurityException> failure, int low,
+                            int high) {
+            this.encrypt = encrypt;
+            this.cipherSuite = cipherSuite;
+            this.sessionKey = sessionKey;
+            this.iv = iv;
+            this.segmentSize = segmentSize;
+            this.input = input;
+            this.output = output;
+            this.firstSegment = firstSegment;
+            this.segments = segments;
+            this.containsLast = containsLast;
+            this.failure = failure;
+            this.low = low;
+            this.high = high;
+        }
+
+        private SegmentTask subtask(int low, int high) {
+            return new SegmentTask(encrypt, cipherSuite, sessionKey, iv, segmentSize, input, output, firstSegment,
+                    segments, containsLast, failure, low, high);
+        }
+
+        @Override
+        protected void compute() {
+            if (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                invokeAll(subtask(low, middle), subtask(middle, high));
+                return;
+            }
+
+            if (failure.get() != null)
+                return;
+
+            try {
+                processSegment(low);
+            } catch (GeneralSecurityException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        private void processSegment(int index) throws GeneralSecurityException {
+            int tagLength = cipherSuite.getTagLength();
+            int inputLength = encrypt ? segmentSize : segmentSize + tagLength;
+            int outputLength = encrypt ? segmentSize + tagLength : segmentSize;
+
+            ByteBuffer in = input.duplicate();
+            int start = input.position() + index * inputLength;
+            in.limit((int) Math.min(input.limit(), (long) start + inputLength));
+            in.position(start);
+
+            ByteBuffer out = output.duplicate();
+            out.position(output.position() + index * outputLength);
+
+            long segment = firstSegment + index;
+            boolean last = containsLast && index == segments - 1;
+            byte[] nonce = getSegmentNonce(iv, segment);
+            byte[] associatedData = getSegmentData(segment, last);
+
+            if (encrypt)
+                cipherSuite.encrypt(sessionKey, nonce, associatedData, in, out);
+            else
+                cipherSuite.decrypt(sessionKey, nonce, associatedData, in, out);
+        }
+    }
+
+    @Override
+    public int getEncodedLength() {
+        return super.getEncodedLength() + 4;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(toByteArray());
+        outputStream.flush();
+    }
+
+    @Override
+    public void writeHeaderTo(ByteBuffer byteBuffer) throws IOException {
+        byteBuffer.put((byte) VERSION);
+        byteBuffer.putInt(getSegmentSize());
+        writeHeaderBody(byteBuffer);
+    }
+
+    public static SegmentedMessage readFrom(ByteBuffer byteBuffer) throws IOException {
+        SegmentedMessage segmentedMessage = readHeaderFrom(byteBuffer);
+
+        try {
+            byte[] messageBytes = new byte[readMessageLength(byteBuffer)];
+            byteBuffer.get(messageBytes);
+            segmentedMessage.setMessageBytes(messageBytes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted message", e);
+        }
+
+        return segmentedMessage;
+    }
+
+    /**
+     * Read everything up to, but not including, the length of the cipher text.
+     *
+     * @see EncryptedMessage#readHeaderFrom(ByteBuffer)
+     */
+    public static SegmentedMessage readHeaderFrom(ByteBuffer byteBuffer) throws IOException {
+        try {
+            int version = byteBuffer.get() & 0xFF;
+            if (version != VERSION)
+                throw new IOException("Not a segmented message: version " + version);
+
+            int segmentSize = byteBuffer.getInt();
+            EncryptedMessage header = readHeaderBody(byteBuffer);
+
+            return new SegmentedMessage(header.getAlgorithm(), header.getKeyBytes(), header.getIv(), null,
+                    segmentSize);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted message", e);
+        }
+    }
+
+    /**
+     * Read the rest of a message from a stream whose version has already been read.
+     */
+    static SegmentedMessage readAfterVersion(DataInputStream dataInputStream, int maxMessageLength)
+            throws IOException {
+        int segmentSize = dataInputStream.readInt();
+        EncryptedMessage encryptedMessage = readBody(dataInputStream, maxMessageLength);
+
+        return new SegmentedMessage(encryptedMessage.getAlgorithm(), encryptedMessage.getKeyBytes(),
+                encryptedMessage.getIv(), encryptedMessage.getMessageBytes(), segmentSize);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import java.math.BigInteger;
+
+/**
+ * A source of serial numbers for the certificates a {@link CertificateAuthority} issues.
+ *
+ * <p>
+ *     Implementations must be thread-safe and must never return the same serial number twice.  Serial
+ *     numbers must be positive and no more than 20 bytes long (RFC 5280, section 4.1.2.2).
+ * </p>
+ *
+ * @see RandomSerialNumberAllocator
+ * @see CounterSerialNumberAllocator
+ */
+public interface SerialNumberAllocator {
+    /**
+     * Return a serial number that has not been returned before.
+     *
+     * @throws EncryptionException If a serial number cannot be allocated.
+     */
+    BigInteger next () throws EncryptionException;
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of decrypted session keys.
+ *
+ * <p>
+ *     Decrypting a session key with a private key is by far the most expensive part of decrypting an
+ *     {@link EncryptedMessage}.  When a sender reuses a session key for many messages, this cache lets the
+ *     recipient pay that cost once: it maps a digest of the encrypted session key to the decrypted
+ *     {@link SecretKey}.
+ * </p>
+ *
+ * <p>
+ *     Entries are evicted when the cache is larger than its maximum size (least recently used first) or
+ *     when they are older than the time to live.  The cache is thread-safe.
+ * </p>
+ *
+ * <h3>Attributes</h3>
+ * <table border="1">
+ *     <tr>
+ *         <th>Name</th>
+ *         <th>Type</th>
+ *         <th>Description</th>
+ *     </tr>
+ *     <tr>
+ *         <td>maxSize</td>
+ *         <td>int</td>
+ *         <td>The maximum number of session keys the cache will hold.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>timeToLive</td>
+ *         <td>long</td>
+ *         <td>How long, in milliseconds, an entry stays in the cache.  0 means forever.</td>
+ *     </tr>
+ * </table>
+ *
+ * @see PrivateKey#setSessionKeyCache(SessionKeyCache)
+ */
+public class SessionKeyCache {
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    public static final int DEFAULT_MAX_SIZE = 1024;
+    public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000;
+
+    private static class Entry {
+        private SecretKey secretKey;
+        private long expires;
+
+        public Entry (SecretKey secretKey, long expires) {
+            this.secretKey = secretKey;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final Map<ByteBuffer, Entry> map;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SessionKeyCache () {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    public SessionKeyCache (int maxSize, long timeToLive) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be positive");
+
+        if (timeToLive < 0)
+            throw new IllegalArgumentException("timeToLive must not be negative");
+
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.map = createMap();
+    }
+
+    // the map is never serialized
+    @SuppressWarnings("serial")
+    private Map<ByteBuffer, Entry> createMap() {
+        return new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                boolean remove = size() > SessionKeyCache.this.maxSize;
+                if (remove)
+                    evictions.incrementAndGet();
+
+                return remove;
+            }
+        };
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size () {
+        return map.size();
+    }
+
+    public synchronized void clear () {
+        map.clear();
+    }
+
+    /**
+     * Look up a session key.
+     *
+     * @param algorithm The algorithm the session key is for.
+     * @param sessionKeyCipherText The encrypted session key.
+     * @return The decrypted session key, or null if it is not in the cache.
+     * @throws EncryptionException If there is a problem computing the digest.
+     */
+    public SecretKey get (String algorithm, byte[] sessionKeyCipherText) throws EncryptionException {
+        ByteBuffer digest = digest(algorithm, sessionKeyCipherText);
+        Entry entry;
+
+        synchronized (this) {
+            entry = map.get(digest);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                map.remove(digest);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.secretKey;
+    }
+
+    public void put (String algorithm, byte[] sessionKeyCipherText, SecretKey secretKey) throws EncryptionException {
+        ByteBuffer digest = digest(algorithm, sessionKeyCipherText);
+        long expires = timeToLive == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeToLive;
+        Entry entry = new Entry(secretKey, expires);
+
+        synchronized (this) {
+            map.put(digest, entry);
+        }
+    }
+
+    public static ByteBuffer digest (String algorithm, byte[] sessionKeyCipherText) throws EncryptionException {
+        try {
+            java.security.MessageDigest messageDigest = CryptoEngines.getMessageDigest(DIGEST_ALGORITHM);
+            messageDigest.update(algorithm.getBytes(StandardCharsets.UTF_8));
+            messageDigest.update(sessionKeyCipherText);
+            return ByteBuffer.wrap(messageDigest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionException("Exception trying to digest session key", e);
+        }
+    }
+}
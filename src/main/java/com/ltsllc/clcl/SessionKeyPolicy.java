@@ -0,0 +1,94 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+/**
+ * How long a sender may keep using one session key.
+ *
+ * <p>
+ *     Creating and encrypting a session key for every message is expensive when many messages go to the same
+ *     recipient.  When a {@link Key} has a policy, it reuses one session key (and its encrypted form) until
+ *     the key has been used for {@link #getMaxMessages()} messages, has encrypted {@link #getMaxBytes()} bytes
+ *     or is older than {@link #getMaxAge()} milliseconds, whichever comes first.  A limit of 0 means that
+ *     limit does not apply, but at least one limit must be set.
+ * </p>
+ *
+ * <p>
+ *     Instances are immutable.
+ * </p>
+ *
+ * @see Key#setSessionKeyPolicy(SessionKeyPolicy)
+ */
+public class SessionKeyPolicy {
+    private final long maxMessages;
+    private final long maxBytes;
+    private final long maxAge;
+
+    /**
+     * Create a policy.
+     *
+     * @param maxMessages The number of messages a session key may be used for, or 0 for no limit.
+     * @param maxBytes The number of bytes a session key may encrypt, or 0 for no limit.
+     * @param maxAge How long, in milliseconds, a session key may be used, or 0 for no limit.
+     */
+    public SessionKeyPolicy (long maxMessages, long maxBytes, long maxAge) {
+        if (maxMessages < 0 || maxBytes < 0 || maxAge < 0)
+            throw new IllegalArgumentException("Limits must not be negative");
+
+        if (maxMessages == 0 && maxBytes == 0 && maxAge == 0)
+            throw new IllegalArgumentException("At least one limit must be set");
+
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+    }
+
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Can a session key be used for another message?
+     *
+     * @param messages The number of messages the key has already been used for.
+     * @param bytes The number of bytes the key has already encrypted.
+     * @param created When the key was created, in milliseconds.
+     * @param length The length of the next message.
+     * @return true if the key may be used for the next message.
+     */
+    public boolean allows (long messages, long bytes, long created, long length) {
+        if (maxMessages != 0 && messages >= maxMessages)
+            return false;
+
+        if (maxBytes != 0 && bytes + length > maxBytes)
+            return false;
+
+        if (maxAge != 0 && System.currentTimeMillis() - created >= maxAge)
+            return false;
+
+        return true;
+    }
+}
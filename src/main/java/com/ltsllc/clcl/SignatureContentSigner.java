@@ -0,0 +1,83 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.RuntimeOperatorException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * A {@link ContentSigner} that uses a {@link Signature} from whatever provider supports the algorithm.
+ *
+ * <p>
+ *     The bouncy castle lightweight signers only cover RSA and DSA, so this is what signs certificates
+ *     with elliptic curve keys.
+ * </p>
+ */
+class SignatureContentSigner implements ContentSigner {
+    private AlgorithmIdentifier algorithmIdentifier;
+    private Signature signature;
+
+    public SignatureContentSigner (String algorithm, java.security.PrivateKey privateKey)
+            throws GeneralSecurityException {
+        this.algorithmIdentifier = new DefaultSignatureAlgorithmIdentifierFinder().find(algorithm);
+        this.signature = Signature.getInstance(algorithm);
+        this.signature.initSign(privateKey);
+    }
+
+    @Override
+    public AlgorithmIdentifier getAlgorithmIdentifier() {
+        return algorithmIdentifier;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                try {
+                    signature.update(bytes, offset, length);
+                } catch (SignatureException e) {
+                    throw new IOException("Exception trying to sign", e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public byte[] getSignature() {
+        try {
+            return signature.sign();
+        } catch (SignatureException e) {
+            throw new RuntimeOperatorException("Exception trying to sign", e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+/**
+ * A message and its detached signature, as created by {@link PrivateKey#sign(byte[])}.
+ *
+ * <p>
+ *     This is what {@link PublicKey#verifyAll(java.util.List)} takes.
+ * </p>
+ */
+public class SignedMessage {
+    private byte[] message;
+    private byte[] signature;
+
+    public SignedMessage (byte[] message, byte[] signature) {
+        this.message = message;
+        this.signature = signature;
+    }
+
+    public byte[] getMessage() {
+        return message;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+}
@@ -25,6 +25,8 @@ import java.math.BigInteger;
 import java.security.cert.X509Certificate;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 public class TestCertificate {
     public static final String TEST_CERTIFICATE_PEM =
@@ -166,4 +168,33 @@ public class TestCertificate {
         Certificate certificate = Certificate.fromPEM(TEST_CERTIFICATE_PEM);
         assert (certificate.equals(getCertificate()));
     }
+
+    @Test
+    public void testCachedValues () throws Exception {
+        Certificate same = Certificate.fromPEM(TEST_CERTIFICATE_PEM);
+        Certificate other = Certificate.fromPEM(TEST_OTHER_CERTIFICATE_PEM);
+
+        int hashCode = getCertificate().hashCode();
+        assert (getCertificate().getSubject().equals(getCertificate().getSubject()));
+
+        // the names that are returned are copies, so changing them does not change the certificate
+        getCertificate().getSubject().setName("something else");
+        getCertificate().getIssuer().setName("something else");
+        assert (getCertificate().hashCode() == hashCode);
+        assert (!"something else".equals(getCertificate().getSubject().getName()));
+
+        assert (getCertificate().equals(same));
+        assert (getCertificate().hashCode() == same.hashCode());
+        assert (!getCertificate().equals(other));
+
+        String fingerprint = getCertificate().getFingerprint();
+        assert (fingerprint.length() == 64);
+        assert (fingerprint.equals(same.getFingerprint()));
+        assert (!fingerprint.equals(other.getFingerprint()));
+
+        Set<Certificate> certificates = new HashSet<Certificate>();
+        certificates.add(getCertificate());
+        assert (certificates.contains(same));
+        assert (!certificates.contains(other));
+    }
 }
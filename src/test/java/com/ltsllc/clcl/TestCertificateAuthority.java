@@ -0,0 +1,112 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+public class TestCertificateAuthority {
+    private KeyPair issuerKeys;
+    private CertificateAuthority certificateAuthority;
+    private Date now;
+    private Date nextYear;
+
+    public static DistinguishedName createDn (String name) {
+        DistinguishedName dn = new DistinguishedName();
+        dn.setCountryCode("US");
+        dn.setState("Colorado");
+        dn.setCity("Denver");
+        dn.setCompany("Long Term Software");
+        dn.setDivision("Research");
+        dn.setName(name);
+        return dn;
+    }
+
+    public static KeyPair createKeyPair (String algorithm, String name) throws EncryptionException {
+        KeyPair keyPair = KeyPair.newKeys(algorithm);
+        keyPair.getPublicKey().setDn(createDn(name));
+        keyPair.getPrivateKey().setDn(createDn(name));
+        return keyPair;
+    }
+
+    @Before
+    public void setup () throws EncryptionException {
+        issuerKeys = createKeyPair(KeyPair.ALGORITHM, "ca.foo.com");
+        certificateAuthority = new CertificateAuthority(issuerKeys.getPrivateKey());
+
+        now = new Date();
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(now);
+        calendar.add(Calendar.YEAR, 1);
+        nextYear = calendar.getTime();
+    }
+
+    @Test
+    public void testIssue () throws Exception {
+        KeyPair subjectKeys = createKeyPair(KeyPair.ALGORITHM, "foo.com");
+        Certificate certificate = certificateAuthority.issue(subjectKeys.createCertificateSigningRequest(), now,
+                nextYear);
+
+        certificate.getCertificate().verify(issuerKeys.getPublicKey().getSecurityPublicKey());
+        assert (certificate.getCertificate().getPublicKey().equals(subjectKeys.getPublicKey().getSecurityPublicKey()));
+        assert (certificate.getCertificate().getSubjectX500Principal().getName().contains("foo.com"));
+        assert (certificate.getCertificate().getIssuerX500Principal().getName().contains("ca.foo.com"));
+
+        Certificate other = certificateAuthority.issue(subjectKeys.createCertificateSigningRequest(), now, nextYear);
+        other.getCertificate().verify(issuerKeys.getPublicKey().getSecurityPublicKey());
+        assert (!other.getCertificate().getSerialNumber().equals(certificate.getCertificate().getSerialNumber()));
+    }
+
+    @Test
+    public void testEllipticCurve () throws Exception {
+        KeyPair ecIssuerKeys = createKeyPair(KeyPair.EC_ALGORITHM, "ca.foo.com");
+        CertificateAuthority ecAuthority = new CertificateAuthority(ecIssuerKeys.getPrivateKey());
+
+        KeyPair subjectKeys = createKeyPair(KeyPair.EC_ALGORITHM, "foo.com");
+        Certificate certificate = ecAuthority.issue(subjectKeys.createCertificateSigningRequest(), now, nextYear);
+        certificate.getCertificate().verify(ecIssuerKeys.getPublicKey().getSecurityPublicKey());
+
+        certificate = ecAuthority.issue(subjectKeys.createCertificateSigningRequest(), now, nextYear);
+        certificate.getCertificate().verify(ecIssuerKeys.getPublicKey().getSecurityPublicKey());
+    }
+
+    @Test
+    public void testIssueAll () throws Exception {
+        KeyPair subjectKeys = createKeyPair(KeyPair.EC_ALGORITHM, "foo.com");
+        CertificateSigningRequest csr = subjectKeys.createCertificateSigningRequest();
+
+        List<CertificateSigningRequest> requests = new ArrayList<CertificateSigningRequest>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(csr);
+        }
+
+        BatchResult<Certificate> certificates = certificateAuthority.issueAll(requests, now, nextYear);
+        assert (certificates.size() == 20);
+        assert (!certificates.hasFailures());
+
+        for (Certificate certificate : certificates.getResults()) {
+            certificate.getCertificate().verify(issuerKeys.getPublicKey().getSecurityPublicKey());
+        }
+    }
+}
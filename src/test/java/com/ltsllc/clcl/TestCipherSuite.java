@@ -0,0 +1,120 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class TestCipherSuite {
+    public static final String TEST_MESSAGE = "The Magic Words are Squeamish Ossifrage";
+
+    private KeyPair keyPair;
+
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    @Before
+    public void setup () throws EncryptionException {
+        this.keyPair = KeyPair.newKeys();
+    }
+
+    @Test
+    public void testRegistry () {
+        assert (CipherSuite.getCipherSuite(CipherSuite.AES_GCM) != null);
+        assert (CipherSuite.getCipherSuite(CipherSuite.AES_CTR_HMAC_SHA256) != null);
+        assert (CipherSuite.getCipherSuite(CipherSuite.CHACHA20_POLY1305) != null);
+        assert (CipherSuite.getCipherSuite("no such suite") == null);
+        assert (CipherSuite.getAvailableCipherSuites().contains(CipherSuite.getCipherSuite(CipherSuite.AES_GCM)));
+    }
+
+    @Test
+    public void testEncrypt () throws Exception {
+        for (CipherSuite cipherSuite : CipherSuite.getAvailableCipherSuites()) {
+            EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().encrypt(cipherSuite.getId(),
+                    TEST_MESSAGE.getBytes());
+
+            assert (encryptedMessage.getAlgorithm().equals(cipherSuite.getId()));
+            assert (encryptedMessage.getIv().length == cipherSuite.getIvLength());
+
+            EncryptedMessage copy = EncryptedMessage.fromByteArray(encryptedMessage.toByteArray());
+            byte[] plainText = getKeyPair().getPrivateKey().decrypt(copy);
+            assert (TEST_MESSAGE.equals(new String(plainText)));
+        }
+    }
+
+    @Test
+    public void testTampering () throws Exception {
+        for (CipherSuite cipherSuite : CipherSuite.getAvailableCipherSuites()) {
+            EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().encrypt(cipherSuite.getId(),
+                    TEST_MESSAGE.getBytes());
+            encryptedMessage.getMessageBytes()[0] ^= 1;
+
+            try {
+                getKeyPair().getPrivateKey().decrypt(encryptedMessage);
+                assert (false);
+            } catch (EncryptionException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testSetCipherSuite () throws Exception {
+        getKeyPair().getPublicKey().setCipherSuite(CipherSuite.AES_GCM);
+        EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().toEncryptedMessage(TEST_MESSAGE.getBytes());
+        assert (encryptedMessage.getAlgorithm().equals(CipherSuite.AES_GCM));
+
+        try {
+            getKeyPair().getPublicKey().setCipherSuite("no such suite");
+            assert (false);
+        } catch (EncryptionException e) {
+        }
+    }
+
+    @Test
+    public void testStream () throws Exception {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        OutputStream outputStream = getKeyPair().getPublicKey().openEncryptingStream(CipherSuite.AES_GCM,
+                byteArrayOutputStream);
+        outputStream.write(TEST_MESSAGE.getBytes());
+        outputStream.close();
+
+        InputStream inputStream = getKeyPair().getPrivateKey().openDecryptingStream(
+                new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        ByteArrayOutputStream plainText = new ByteArrayOutputStream();
+        int b = inputStream.read();
+        while (b != -1) {
+            plainText.write(b);
+            b = inputStream.read();
+        }
+
+        assert (TEST_MESSAGE.equals(new String(plainText.toByteArray())));
+    }
+
+    @Test
+    public void testFindFastest () {
+        CipherSuite fastest = CipherSuite.findFastest(1024, 10);
+        assert (fastest != null);
+        assert (fastest.isAvailable());
+    }
+}
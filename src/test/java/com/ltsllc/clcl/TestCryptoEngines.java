@@ -0,0 +1,72 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import java.security.Signature;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestCryptoEngines {
+    public static final String TEST_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    @After
+    public void cleanup () {
+        CryptoEngines.clear();
+    }
+
+    @Test
+    public void testSameThread () throws Exception {
+        Cipher cipher = CryptoEngines.getCipher(TEST_TRANSFORMATION);
+        Cipher other = CryptoEngines.getCipher(TEST_TRANSFORMATION);
+        assert (cipher == other);
+        assert (cipher != CryptoEngines.getCipher("AES"));
+
+        Signature signature = CryptoEngines.getSignature(Key.RSA_MESSAGE_SIGNATURE_ALGORITHM);
+        assert (signature == CryptoEngines.getSignature(Key.RSA_MESSAGE_SIGNATURE_ALGORITHM));
+    }
+
+    @Test
+    public void testOtherThread () throws Exception {
+        final AtomicReference<Cipher> reference = new AtomicReference<Cipher>();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    reference.set(CryptoEngines.getCipher(TEST_TRANSFORMATION));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        thread.start();
+        thread.join();
+
+        assert (reference.get() != null);
+        assert (reference.get() != CryptoEngines.getCipher(TEST_TRANSFORMATION));
+    }
+
+    @Test
+    public void testClear () throws Exception {
+        Cipher cipher = CryptoEngines.getCipher(TEST_TRANSFORMATION);
+        CryptoEngines.clear();
+        assert (cipher != CryptoEngines.getCipher(TEST_TRANSFORMATION));
+    }
+}
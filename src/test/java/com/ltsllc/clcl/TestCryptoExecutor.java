@@ -0,0 +1,109 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+public class TestCryptoExecutor {
+    public static final String TEST_MESSAGE = "The Magic Words are Squeamish Ossifrage";
+
+    private CryptoExecutor cryptoExecutor;
+
+    public CryptoExecutor getCryptoExecutor() {
+        return cryptoExecutor;
+    }
+
+    @Before
+    public void setup () {
+        this.cryptoExecutor = new CryptoExecutor(2, 4);
+    }
+
+    @After
+    public void cleanup () {
+        getCryptoExecutor().shutdown();
+    }
+
+    @Test
+    public void testAsync () throws Exception {
+        KeyPair keyPair = KeyPair.newKeysAsync(getCryptoExecutor()).get();
+        keyPair.getPublicKey().setCryptoExecutor(getCryptoExecutor());
+        keyPair.getPrivateKey().setCryptoExecutor(getCryptoExecutor());
+
+        byte[] plainText = keyPair.getPublicKey().encryptAsync(TEST_MESSAGE.getBytes())
+                .thenCompose(encryptedMessage -> keyPair.getPrivateKey().decryptAsync(encryptedMessage))
+                .get();
+
+        assert (TEST_MESSAGE.equals(new String(plainText)));
+        assert (getCryptoExecutor().getPending() == 0);
+    }
+
+    @Test
+    public void testFailure () throws Exception {
+        KeyPair keyPair = KeyPair.newKeys();
+        keyPair.getPrivateKey().setCryptoExecutor(getCryptoExecutor());
+
+        EncryptedMessage encryptedMessage = keyPair.getPublicKey().toEncryptedMessage(TEST_MESSAGE.getBytes());
+        encryptedMessage.setKeyBytes(new byte[] { 1, 2, 3 });
+
+        try {
+            keyPair.getPrivateKey().decryptAsync(encryptedMessage).get();
+            assert (false);
+        } catch (ExecutionException e) {
+            assert (e.getCause() instanceof EncryptionException);
+        }
+    }
+
+    @Test
+    public void testBackpressure () throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Callable<Object> blocked = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                latch.await();
+                return null;
+            }
+        };
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[getCryptoExecutor().getMaxPending()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = getCryptoExecutor().submit(blocked);
+        }
+
+        assert (getCryptoExecutor().getPending() == getCryptoExecutor().getMaxPending());
+
+        try {
+            getCryptoExecutor().submit(blocked).get();
+            assert (false);
+        } catch (ExecutionException e) {
+            assert (e.getCause() instanceof RejectedExecutionException);
+        }
+
+        latch.countDown();
+        CompletableFuture.allOf(futures).get();
+        assert (getCryptoExecutor().submit(blocked).get() == null);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.junit.Test;
+
+import javax.security.auth.x500.X500Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestDistinguishedName {
+    /**
+     * Names in the forms that turn up in real certificates and directories.
+     */
+    public static final String[] TEST_CORPUS = {
+            "c=US,st=Colorado,l=Denver,o=Long Term Software,ou=Research,cn=foo.com",
+            "CN=foo.com, OU=Research, O=Long Term Software, L=Denver, ST=Colorado, C=US",
+            "CN=Go Daddy Secure Certificate Authority - G2, OU=http://certs.godaddy.com/repository/, " +
+                    "O=\"GoDaddy.com, Inc.\", L=Scottsdale, ST=Arizona, C=US",
+            "EMAILADDRESS=admin@foo.com, CN=foo.com, O=Long Term Software, C=US",
+            "CN=foo.com+UID=1234,OU=Research,O=Long Term Software,C=US",
+            "2.5.4.3=foo.com;2.5.4.10=Long Term Software;2.5.4.6=US",
+            "OID.2.5.4.3=foo.com, O=Long Term Software",
+            "1.2.840.113549.1.9.1=#160d61646d696e40666f6f2e636f6d,CN=foo.com"
+    };
+
+    @Test
+    public void testCorpus () {
+        for (String string : TEST_CORPUS) {
+            DistinguishedName dn = new DistinguishedName(string);
+            assert (dn.getName().equals("foo.com") || dn.getName().startsWith("Go Daddy"));
+        }
+
+        DistinguishedName dn = new DistinguishedName(TEST_CORPUS[1]);
+        assert (dn.getCountryCode().equals("US"));
+        assert (dn.getState().equals("Colorado"));
+        assert (dn.getCity().equals("Denver"));
+        assert (dn.getCompany().equals("Long Term Software"));
+        assert (dn.getDivision().equals("Research"));
+        assert (dn.equals(new DistinguishedName(TEST_CORPUS[0])));
+
+        dn = new DistinguishedName(TEST_CORPUS[2]);
+        assert (dn.getCompany().equals("GoDaddy.com, Inc."));
+        assert (dn.getDivision().equals("http://certs.godaddy.com/repository/"));
+
+        dn = new DistinguishedName(TEST_CORPUS[5]);
+        assert (dn.getCompany().equals("Long Term Software"));
+        assert (dn.getCountryCode().equals("US"));
+        assert (dn.getState() == null);
+    }
+
+    @Test
+    public void testEscapes () {
+        DistinguishedName dn = new DistinguishedName("CN=Doe\\, John \\+ Jane\\=\\\"JJ\\\"\\ ,O=Lu\\C4\\8Di\\C4\\87  ,C=US");
+        assert (dn.getName().equals("Doe, John + Jane=\"JJ\" "));
+        assert (dn.getCompany().equals("Lučić"));
+        assert (dn.getCountryCode().equals("US"));
+
+        try {
+            new DistinguishedName("CN=foo.com,Research");
+            assert (false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            new DistinguishedName("CN=\"foo.com");
+            assert (false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHexValues () {
+        DistinguishedName dn = new DistinguishedName("CN=#0c03666f6f,C=#13025553 ,2.5.4.45=#04020102");
+        assert (dn.getName().equals("foo"));
+        assert (dn.getCountryCode().equals("US"));
+
+        String[] invalid = { "CN=#04020102", "CN=#0c0", "CN=#0c03666f", "CN=#", "CN=#0c03666f6fzz" };
+        for (String string : invalid) {
+            try {
+                new DistinguishedName(string);
+                assert (false);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip () {
+        DistinguishedName dn = new DistinguishedName();
+        dn.setCountryCode("US");
+        dn.setState("Colorado");
+        dn.setCity("Denver");
+        dn.setCompany("Long Term Software, LLC");
+        dn.setDivision("#Research; and <Development>");
+        dn.setName(" a=b+c\\d ");
+
+        assert (dn.equals(new DistinguishedName(dn.toString())));
+
+        X500Principal principal = new X500Principal(dn.toString());
+        assert (dn.equals(new DistinguishedName(principal)));
+        assert (dn.equals(new DistinguishedName(principal.getName())));
+    }
+
+    @Test
+    public void testPartialRoundTrip () {
+        DistinguishedName dn = new DistinguishedName("cn=a\\,b,o=x\\=y,c=US");
+        assert (dn.getName().equals("a,b"));
+        assert (dn.getCompany().equals("x=y"));
+        assert (dn.getState() == null);
+
+        // missing attributes are left out rather than written as "null"
+        assert (!dn.toString().contains("null"));
+        assert (dn.equals(new DistinguishedName(dn.toString())));
+        assert (new DistinguishedName(dn.toString()).getState() == null);
+
+        DistinguishedName nameOnly = new DistinguishedName(dn);
+        nameOnly.setCountryCode(null);
+        nameOnly.setCompany(null);
+        assert (nameOnly.toString().equals("cn=a\\,b"));
+        assert (nameOnly.equals(new DistinguishedName(nameOnly.toString())));
+    }
+
+    @Test
+    public void testCanonicalForm () {
+        DistinguishedName dn = new DistinguishedName("CN=foo.com,OU=Research,O=Long Term Software,C=US");
+        DistinguishedName other = new DistinguishedName("cn=FOO.COM, ou=  research , o=Long   Term\tSoftware, c=us");
+        other.setCompany("LONG  TERM SOFTWARE ");
+
+        assert (dn.equals(other));
+        assert (dn.hashCode() == other.hashCode());
+        assert (dn.getCanonicalForm().equals(other.getCanonicalForm()));
+
+        int hashCode = other.hashCode();
+        other.setDivision("Development");
+        assert (!dn.equals(other));
+        assert (other.hashCode() != hashCode);
+
+        Map<DistinguishedName, String> map = new HashMap<DistinguishedName, String>();
+        map.put(dn, "foo");
+        assert ("foo".equals(map.get(new DistinguishedName("CN=Foo.com,OU=RESEARCH,O=long term software,C=US"))));
+
+        // a missing attribute is not the same as one with the value "null", or an empty one
+        assert (!new DistinguishedName("CN=foo.com,C=US").equals(new DistinguishedName("CN=foo.com,C=US,O=null")));
+        assert (!new DistinguishedName("CN=foo.com,C=US").equals(new DistinguishedName("CN=foo.com,C=US,O=")));
+    }
+
+    @Test
+    public void testToStringRoundTrip () {
+        for (String string : TEST_CORPUS) {
+            DistinguishedName dn = new DistinguishedName(string);
+            DistinguishedName reparsed = new DistinguishedName(dn.toString());
+            assert (dn.equals(reparsed));
+            assert (dn.hashCode() == reparsed.hashCode());
+            assert (dn.getCanonicalForm().equals(reparsed.getCanonicalForm()));
+        }
+    }
+
+    @Test
+    public void testIntern () {
+        DistinguishedName dn = new DistinguishedName("CN=foo.com,OU=Research,O=Long Term Software,C=US").intern();
+        DistinguishedName other = new DistinguishedName("cn=FOO.COM,ou=research,o=long term software,c=us");
+
+        assert (other.intern() == dn);
+        assert (dn.intern() == dn);
+        assert (new DistinguishedName("CN=bar.com").intern() != dn);
+    }
+
+    @Test
+    public void testInternedNamesAreFrozen () {
+        DistinguishedName original = new DistinguishedName("CN=bar.com");
+        DistinguishedName interned = original.intern();
+        assert (interned.isFrozen());
+        assert (!original.isFrozen());
+
+        try {
+            interned.setName("baz.com");
+            assert (false);
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // changing the name that was interned does not change the shared one
+        original.setName("baz.com");
+        assert (new DistinguishedName("CN=bar.com").intern() == interned);
+        assert (interned.getName().equals("bar.com"));
+
+        DistinguishedName copy = new DistinguishedName(interned);
+        copy.setName("baz.com");
+        assert (!copy.isFrozen());
+        assert (new DistinguishedName("CN=baz.com").equals(copy));
+        assert (new DistinguishedName("CN=bar.com").intern() == interned);
+    }
+}
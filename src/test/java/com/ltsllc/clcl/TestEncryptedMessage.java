@@ -0,0 +1,131 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ltsllc.clcl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TestEncryptedMessage {
+    public static final String TEST_MESSAGE = "The Magic Words are Squeamish Ossifrage";
+
+    private KeyPair keyPair;
+
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    @Before
+    public void setup () throws EncryptionException {
+        this.keyPair = KeyPair.newKeys();
+    }
+
+    public static boolean sameMessage (EncryptedMessage message, EncryptedMessage other) {
+        return message.getAlgorithm().equals(other.getAlgorithm())
+                && Arrays.equals(message.getKeyBytes(), other.getKeyBytes())
+                && Arrays.equals(message.getIv(), other.getIv())
+                && Arrays.equals(message.getMessageBytes(), other.getMessageBytes());
+    }
+
+    @Test
+    public void testWriteToStream () throws Exception {
+        EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().toEncryptedMessage(TEST_MESSAGE.getBytes());
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        encryptedMessage.writeTo(byteArrayOutputStream);
+        assert (byteArrayOutputStream.size() == encryptedMessage.getEncodedLength());
+
+        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
+        EncryptedMessage other = EncryptedMessage.readFrom(byteArrayInputStream);
+        assert (sameMessage(encryptedMessage, other));
+
+        byte[] plainText = getKeyPair().getPrivateKey().decrypt(other);
+        assert (TEST_MESSAGE.equals(new String(plainText)));
+    }
+
+    @Test
+    public void testWriteToBuffer () throws Exception {
+        EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().toEncryptedMessage(TEST_MESSAGE.getBytes());
+        encryptedMessage.setIv(new byte[] { 1, 2, 3, 4 });
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(encryptedMessage.getEncodedLength());
+        encryptedMessage.writeTo(byteBuffer);
+        assert (!byteBuffer.hasRemaining());
+
+        byteBuffer.flip();
+        EncryptedMessage other = EncryptedMessage.readFrom(byteBuffer);
+        assert (sameMessage(encryptedMessage, other));
+    }
+
+    @Test
+    public void testHexCompatibility () throws Exception {
+        EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().toEncryptedMessage(TEST_MESSAGE.getBytes());
+        EncryptedMessage other = new EncryptedMessage(encryptedMessage.getAlgorithm(), encryptedMessage.getKey(),
+                encryptedMessage.getMessage());
+
+        byte[] plainText = getKeyPair().getPrivateKey().decrypt(other);
+        assert (TEST_MESSAGE.equals(new String(plainText)));
+    }
+
+    @Test
+    public void testTruncated () throws Exception {
+        EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().toEncryptedMessage(TEST_MESSAGE.getBytes());
+        byte[] bytes = encryptedMessage.toByteArray();
+
+        try {
+            EncryptedMessage.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1));
+            assert (false);
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testUntrustedLength () throws Exception {
+        EncryptedMessage encryptedMessage = getKeyPair().getPublicKey().toEncryptedMessage(TEST_MESSAGE.getBytes());
+        byte[] bytes = encryptedMessage.toByteArray();
+
+        try {
+            EncryptedMessage.readFrom(new ByteArrayInputStream(bytes), encryptedMessage.getMessageBytes().length - 1);
+            assert (false);
+        } catch (IOException e) {
+        }
+
+        // a length that claims almost 2 GB, followed by a few bytes, is not allocated up front
+        ByteBuffer.wrap(bytes).putInt(bytes.length - encryptedMessage.getMessageBytes().length - 4,
+                EncryptedMessage.MAX_MESSAGE_LENGTH);
+
+        try {
+            EncryptedMessage.readFrom(new ByteArrayInputStream(bytes));
+            assert (false);
+        } catch (IOException e) {
+        }
+
+        // cipher text that is longer than one chunk is still read correctly
+        encryptedMessage.setMessageBytes(new byte[5 * EncryptedMessage.READ_CHUNK_SIZE / 2 + 7]);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        encryptedMessage.writeTo(byteArrayOutputStream);
+
+        EncryptedMessage other = EncryptedMessage.readFrom(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assert (sameMessage(encryptedMessage, other));
+    }
+}
@@ -21,9 +21,27 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TestJavaKeyStore extends TestCase {
     public static final String TEST_ALIAS = "private";
@@ -106,4 +124,458 @@ public class TestJavaKeyStore extends TestCase {
         Certificate otherCertificate = getJavaKeyStore().getCertificate(TEST_ALIAS);
         assert (otherCertificate.equals(certificate));
     }
+
+    public static JavaKeyStore createKeyStore (String filename, int count) throws Exception {
+        JavaKeyStore javaKeyStore = new JavaKeyStore();
+        javaKeyStore.setFilename(filename);
+        javaKeyStore.setPasswordString(TEST_PASSWORD);
+
+        for (int i = 0; i < count; i++) {
+            KeyPair keyPair = TestCertificateAuthority.createKeyPair(KeyPair.EC_ALGORITHM, "key" + i + ".foo.com");
+            javaKeyStore.add("key" + i, keyPair, null);
+        }
+
+        javaKeyStore.store();
+        return javaKeyStore;
+    }
+
+    @Test
+    public void testLazy () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+
+        try {
+            JavaKeyStore original = createKeyStore(file.getPath(), 4);
+
+            JavaKeyStore lazy = new JavaKeyStore();
+            lazy.setFilename(file.getPath());
+            lazy.setPasswordString(TEST_PASSWORD);
+            lazy.setLazy(true);
+            lazy.setMaxCachedKeys(2);
+            lazy.load();
+
+            assert (lazy.getKeys().isEmpty());
+            assert (lazy.getKeyAliases().size() == 4);
+            assert (lazy.getCachedKeyCount() == 0);
+
+            assert (lazy.getPublicKey("key1").equals(original.getPublicKey("key1")));
+            assert (lazy.getCertificateChain("key1").length == 1);
+            assert (lazy.getCachedKeyCount() == 0);
+
+            KeyPair keyPair = lazy.getKeyPair("key1");
+            assert (keyPair.equals(original.getKeyPair("key1")));
+            assert (lazy.getKeyPair("key1") == keyPair);
+
+            for (int i = 0; i < 4; i++) {
+                assert (lazy.getKeyPair("key" + i).equals(original.getKeyPair("key" + i)));
+            }
+
+            assert (lazy.getCachedKeyCount() == 2);
+            assert (lazy.getKeyPair("nothing") == null);
+
+            // keys that were never decrypted are still written out
+            JavaKeyStore other = new JavaKeyStore(file.getPath(), TEST_PASSWORD, true);
+            other.store();
+            JavaKeyStore reloaded = new JavaKeyStore(file.getPath(), TEST_PASSWORD);
+            assert (reloaded.getKeys().size() == 4);
+            assert (reloaded.getKeyPair("key3").equals(original.getKeyPair("key3")));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testJsKeyStore () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+        file.delete();
+
+        try {
+            JavaKeyStore javaKeyStore = new JavaKeyStore();
+            javaKeyStore.setFilename(file.getPath());
+
+            KeyPair keyPair = TestCertificateAuthority.createKeyPair(KeyPair.EC_ALGORITHM, "foo.com");
+            javaKeyStore.add(TEST_ALIAS, keyPair, null);
+            javaKeyStore.setPasswordString(TEST_PASSWORD);
+
+            KeyStore keyStore = javaKeyStore.getJsKeyStore();
+            assert (!file.exists());
+            assert (keyStore.isKeyEntry(TEST_ALIAS));
+            assert (keyStore.getKey(TEST_ALIAS, TEST_PASSWORD.toCharArray())
+                    .equals(keyPair.getPrivateKey().getSecurityPrivateKey()));
+
+            Certificate certificate = keyPair.createCertificate();
+            javaKeyStore.add("certificate", certificate);
+            assert (javaKeyStore.getJsKeyStore() == keyStore);
+            assert (keyStore.isCertificateEntry("certificate"));
+
+            javaKeyStore.setPasswordString("something else");
+            assert (keyStore.getKey(TEST_ALIAS, "something else".toCharArray())
+                    .equals(keyPair.getPrivateKey().getSecurityPrivateKey()));
+
+            javaKeyStore.store();
+            JavaKeyStore loaded = new JavaKeyStore(file.getPath(), "something else", true);
+            KeyStore loadedKeyStore = loaded.getJsKeyStore();
+            assert (loadedKeyStore.size() == 2);
+            assert (loaded.getKeyPair(TEST_ALIAS).equals(keyPair));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReplaceMaps () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+
+        try {
+            JavaKeyStore original = createKeyStore(file.getPath(), 3);
+            Certificate certificate = original.getCertificateChain("key0")[0];
+            original.add("certificate", certificate);
+            original.store();
+
+            JavaKeyStore lazy = new JavaKeyStore(file.getPath(), TEST_PASSWORD, true);
+            KeyStore keyStore = lazy.getJsKeyStore();
+
+            Map<String, Certificate> certificates = new HashMap<String, Certificate>();
+            certificates.put("other", certificate);
+            lazy.setCertificates(certificates);
+
+            KeyPair keyPair = TestCertificateAuthority.createKeyPair(KeyPair.EC_ALGORITHM, "new.foo.com");
+            Map<String, KeyPair> keys = new HashMap<String, KeyPair>();
+            keys.put("new", keyPair);
+            lazy.setKeys(keys);
+            lazy.getCertificateChains().put("new", new Certificate[] { keyPair.createCertificate() });
+
+            // the key store is updated in place, without decrypting the keys that were loaded lazily
+            assert (lazy.getJsKeyStore() == keyStore);
+            assert (lazy.getCachedKeyCount() == 0);
+            assert (keyStore.isKeyEntry("key0") && keyStore.isKeyEntry("key2"));
+            assert (keyStore.isKeyEntry("new"));
+            assert (keyStore.isCertificateEntry("other"));
+            assert (!keyStore.containsAlias("certificate"));
+
+            lazy.store();
+            JavaKeyStore reloaded = new JavaKeyStore(file.getPath(), TEST_PASSWORD);
+            assert (reloaded.getKeyPair("key1").equals(original.getKeyPair("key1")));
+            assert (reloaded.getKeyPair("new").equals(keyPair));
+            assert (reloaded.getCertificate("other") != null);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStore () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+
+        try {
+            JavaKeyStore javaKeyStore = createKeyStore(file.getPath(), 2);
+            assert (!javaKeyStore.isDirty());
+
+            // nothing changed, so nothing is written
+            long lastModified = file.lastModified();
+            assert (file.setLastModified(lastModified - 10000));
+            javaKeyStore.store();
+            assert (file.lastModified() == lastModified - 10000);
+
+            javaKeyStore.add("certificate", javaKeyStore.getCertificateChain("key0")[0]);
+            assert (javaKeyStore.isDirty());
+            javaKeyStore.store();
+            assert (!javaKeyStore.isDirty());
+            assert (file.lastModified() != lastModified - 10000);
+
+            File[] leftovers = file.getAbsoluteFile().getParentFile().listFiles();
+            for (File leftover : leftovers) {
+                assert (!(leftover.getName().startsWith("clcl") && leftover.getName().endsWith(".tmp")));
+            }
+
+            JavaKeyStore reloaded = new JavaKeyStore(file.getPath(), TEST_PASSWORD);
+            assert (reloaded.getKeys().size() == 2);
+            assert (reloaded.getCertificate("certificate") != null);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWriteBehind () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+
+        try {
+            JavaKeyStore javaKeyStore = createKeyStore(file.getPath(), 1);
+            javaKeyStore.setWriteBehindDelay(200);
+
+            Certificate certificate = javaKeyStore.getCertificateChain("key0")[0];
+            for (int i = 0; i < 10; i++) {
+                javaKeyStore.add("certificate" + i, certificate);
+            }
+
+            assert (javaKeyStore.isDirty());
+            assert (new JavaKeyStore(file.getPath(), TEST_PASSWORD).getCertificates().size() == 1);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (javaKeyStore.isDirty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            assert (!javaKeyStore.isDirty());
+            assert (javaKeyStore.getLastStoreException() == null);
+            assert (new JavaKeyStore(file.getPath(), TEST_PASSWORD).getCertificates().size() == 11);
+
+            javaKeyStore.add("another", certificate);
+            javaKeyStore.flush();
+            assert (!javaKeyStore.isDirty());
+            assert (new JavaKeyStore(file.getPath(), TEST_PASSWORD).getCertificate("another") != null);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+
+        try {
+            final KeyPair original = createKeyStore(file.getPath(), 2).getKeyPair("key0");
+            final JavaKeyStore javaKeyStore = new JavaKeyStore(file.getPath(), TEST_PASSWORD, true);
+            final Certificate certificate = javaKeyStore.getCertificate("key1");
+            final AtomicBoolean done = new AtomicBoolean(false);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final AtomicLong reads = new AtomicLong();
+
+            List<Thread> threads = new ArrayList<Thread>();
+
+            for (int i = 0; i < 4; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (!done.get()) {
+                                assert (javaKeyStore.getCertificate("key0") != null);
+                                assert (javaKeyStore.getCertificateChain("key0").length == 1);
+                                assert (javaKeyStore.getKeyPair("key0").equals(original));
+                                assert (javaKeyStore.getPublicKey("key1") != null);
+                                assert (javaKeyStore.getKeyAliases().contains("key1"));
+
+                                for (Certificate value : javaKeyStore.getCertificates().values()) {
+                                    assert (value != null);
+                                }
+
+                                reads.incrementAndGet();
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                }));
+            }
+
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; !done.get(); i++) {
+                            javaKeyStore.add("certificate" + i, certificate);
+
+                            if (i % 50 == 0) {
+                                javaKeyStore.setCertificates(new HashMap<String, Certificate>(javaKeyStore.getCertificates()));
+                                javaKeyStore.getJsKeyStore();
+                            }
+
+                            if (i % 200 == 0)
+                                javaKeyStore.load();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            Thread.sleep(2000);
+            done.set(true);
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+
+            assert (reads.get() > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWatching () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+        JavaKeyStore watched = null;
+
+        try {
+            JavaKeyStore writer = createKeyStore(file.getPath(), 2);
+
+            watched = new JavaKeyStore(file.getPath(), TEST_PASSWORD, true);
+            final BlockingQueue<JavaKeyStoreChange> changes = new LinkedBlockingQueue<JavaKeyStoreChange>();
+            watched.addListener(new JavaKeyStoreListener() {
+                @Override
+                public void keyStoreChanged(JavaKeyStoreChange change) {
+                    changes.add(change);
+                }
+            });
+
+            watched.startWatching();
+            assert (watched.isWatching());
+            KeyPair oldKey = watched.getKeyPair("key1");
+
+            KeyPair newKey = TestCertificateAuthority.createKeyPair(KeyPair.EC_ALGORITHM, "key1.foo.com");
+            writer.add("key1", newKey, null);
+            writer.add("certificate", writer.getCertificateChain("key0")[0]);
+            writer.store();
+
+            JavaKeyStoreChange change = changes.poll(10, TimeUnit.SECONDS);
+            assert (change != null);
+            assert (change.getJavaKeyStore() == watched);
+            assert (change.getAdded().contains("certificate"));
+            assert (change.getChanged().contains("key1"));
+            assert (!change.getChanged().contains("key0"));
+            assert (change.getRemoved().isEmpty());
+
+            assert (watched.getCertificate("certificate") != null);
+            assert (watched.getKeyPair("key1").equals(newKey));
+            assert (!watched.getKeyPair("key1").equals(oldKey));
+            assert (!watched.isDirty());
+
+            // reading the same contents again is not a change
+            assert (watched.reload().isEmpty());
+
+            // a file that cannot be read leaves the old contents in place
+            Files.write(file.toPath(), "not a keystore".getBytes());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (watched.getLastReloadException() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            assert (watched.getLastReloadException() != null);
+            assert (watched.getKeyPair("key1").equals(newKey));
+            assert (changes.isEmpty());
+
+            watched.stopWatching();
+            assert (!watched.isWatching());
+        } finally {
+            if (watched != null)
+                watched.stopWatching();
+
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLazyReadsDoNotWaitForWriters () throws Exception {
+        File file = File.createTempFile("clcl", ".jks");
+
+        try {
+            createKeyStore(file.getPath(), 1);
+            final JavaKeyStore javaKeyStore = new JavaKeyStore(file.getPath(), TEST_PASSWORD, true);
+            final CountDownLatch locked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+
+            // hold the instance's lock, as store() does while it writes the file
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (javaKeyStore) {
+                        locked.countDown();
+
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            // done
+                        }
+                    }
+                }
+            });
+
+            writer.start();
+            locked.await();
+
+            try {
+                ExecutorService executorService = Executors.newSingleThreadExecutor();
+                Future<KeyPair> future = executorService.submit(new Callable<KeyPair>() {
+                    @Override
+                    public KeyPair call() throws Exception {
+                        return javaKeyStore.getKeyPair("key0");
+                    }
+                });
+
+                assert (future.get(10, TimeUnit.SECONDS) != null);
+                executorService.shutdown();
+            } finally {
+                release.countDown();
+                writer.join();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentLoad () throws Exception {
+        File small = File.createTempFile("clcl", ".jks");
+        File large = File.createTempFile("clcl", ".jks");
+
+        try {
+            createKeyStore(small.getPath(), 1);
+            createKeyStore(large.getPath(), 2);
+
+            final JavaKeyStore javaKeyStore = new JavaKeyStore(small.getPath(), TEST_PASSWORD, true);
+            final AtomicBoolean done = new AtomicBoolean(false);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final String[] filenames = { small.getPath(), large.getPath() };
+
+            List<Thread> readers = new ArrayList<Thread>();
+
+            for (int i = 0; i < 4; i++) {
+                readers.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (!done.get()) {
+                                // key1 comes and goes, but asking for it never fails
+                                javaKeyStore.getKeyPair("key1");
+                                assert (javaKeyStore.getKeyPair("key0") != null);
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                }));
+            }
+
+            for (Thread reader : readers) {
+                reader.start();
+            }
+
+            try {
+                for (int i = 0; i < 300 && failure.get() == null; i++) {
+                    javaKeyStore.setFilename(filenames[i % 2]);
+                    javaKeyStore.load();
+                }
+            } finally {
+                done.set(true);
+
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+        } finally {
+            small.delete();
+            large.delete();
+        }
+    }
 }
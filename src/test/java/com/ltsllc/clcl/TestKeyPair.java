@@ -20,6 +20,9 @@ package com.ltsllc.clcl;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
 public class TestKeyPair extends TestCase {
     public static final String TEST_PASSWORD = "whatever";
 
@@ -54,4 +57,104 @@ public class TestKeyPair extends TestCase {
         KeyPair keyPair = KeyPair.fromPem(pem, TEST_PASSWORD);
         assert (getKeyPair().equals(keyPair));
     }
+
+    @Test
+    public void testEllipticCurve () throws Exception {
+        KeyPair keyPair = KeyPair.newKeys(KeyPair.EC_ALGORITHM);
+        assert (Key.isEllipticCurve(keyPair.getPublicKey().getSecurityPublicKey()));
+        assert (keyPair.getPublicKey().getKeyId().equals(keyPair.getPrivateKey().getKeyId()));
+
+        byte[] message = "The Magic Words are Squeamish Ossifrage".getBytes();
+        EncryptedMessage encryptedMessage = keyPair.getPublicKey().toEncryptedMessage(message);
+        assert (new String(keyPair.getPrivateKey().decrypt(encryptedMessage)).equals(new String(message)));
+
+        EncryptedMessage rsaMessage = KeyPair.newKeys().getPublicKey().toEncryptedMessage(message);
+        assert (encryptedMessage.getKeyBytes().length < rsaMessage.getKeyBytes().length);
+    }
+
+    @Test
+    public void testEllipticCurveKeyId () throws Exception {
+        // a key from the JDK provider rather than bouncy castle
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyPair.EC_ALGORITHM);
+        keyPairGenerator.initialize(new ECGenParameterSpec(KeyPair.EC_CURVE));
+        java.security.KeyPair jsKeyPair = keyPairGenerator.generateKeyPair();
+
+        PublicKey publicKey = new PublicKey(jsKeyPair.getPublic());
+        PrivateKey privateKey = new PrivateKey(jsKeyPair.getPrivate());
+        assert (publicKey.getKeyId().equals(privateKey.getKeyId()));
+    }
+
+    @Test
+    public void testEllipticCurveCertificate () throws Exception {
+        KeyPair keyPair = KeyPair.newKeys(KeyPair.EC_ALGORITHM);
+
+        DistinguishedName dn = new DistinguishedName();
+        dn.setCountryCode("US");
+        dn.setState("Colorado");
+        dn.setCity("Denver");
+        dn.setCompany("Long Term Software");
+        dn.setDivision("Research");
+        dn.setName("foo.com");
+
+        keyPair.getPublicKey().setDn(dn);
+        keyPair.getPrivateKey().setDn(dn);
+
+        Certificate certificate = keyPair.createCertificate();
+        assert (certificate.getCertificate().getSigAlgName().equalsIgnoreCase(Key.EC_SIGNATURE_ALGORITHM));
+        certificate.getCertificate().verify(keyPair.getPublicKey().getSecurityPublicKey());
+    }
+
+    @Test
+    public void testPartialNameCertificate () throws Exception {
+        KeyPair keyPair = KeyPair.newKeys(KeyPair.EC_ALGORITHM);
+        DistinguishedName dn = new DistinguishedName("CN=foo.com,O=Long Term Software,C=US");
+
+        keyPair.getPublicKey().setDn(dn);
+        keyPair.getPrivateKey().setDn(dn);
+
+        // the subject of the certificate is the name of the key, not one with "null" attributes
+        Certificate certificate = keyPair.createCertificate();
+        assert (certificate.getSubject().equals(dn));
+        assert (certificate.getIssuer().equals(dn));
+        assert (certificate.getSubject().getState() == null);
+    }
+
+    @Test
+    public void testEllipticCurvePem () throws Exception {
+        KeyPair keyPair = KeyPair.newKeys(KeyPair.EC_ALGORITHM);
+
+        String pem = keyPair.toPem();
+        KeyPair other = KeyPair.fromPem(pem);
+        assert (keyPair.equals(other));
+        assert (Key.isEllipticCurve(other.getPrivateKey().getSecurityPrivateKey()));
+
+        pem = keyPair.toPem(TEST_PASSWORD);
+        assert (pem.contains("ENCRYPTED PRIVATE KEY"));
+        assert (keyPair.equals(KeyPair.fromPem(pem, TEST_PASSWORD)));
+
+        try {
+            KeyPair.fromPem(pem, "wrong");
+            assert (false);
+        } catch (EncryptionException e) {
+            // expected
+        }
+
+        pem = keyPair.getPublicKey().toPem();
+        PublicKey publicKey = PublicKey.fromPEM(pem);
+        assert (keyPair.getPublicKey().equals(publicKey));
+        assert (keyPair.getPublicKey().getKeyId().equals(publicKey.getKeyId()));
+
+        pem = keyPair.getPrivateKey().toPem();
+        PrivateKey privateKey = PrivateKey.fromPEM(pem);
+        assert (keyPair.getPrivateKey().equals(privateKey));
+
+        pem = keyPair.getPrivateKey().toPem(TEST_PASSWORD);
+        privateKey = PrivateKey.fromPEM(pem, TEST_PASSWORD);
+        assert (keyPair.getPrivateKey().equals(privateKey));
+
+        // the keys that were read back still work together
+        byte[] message = "The Magic Words are Squeamish Ossifrage".getBytes();
+        EncryptedMessage encryptedMessage = publicKey.toEncryptedMessage(message);
+        assert (new String(privateKey.decrypt(encryptedMessage)).equals(new String(message)));
+    }
 }
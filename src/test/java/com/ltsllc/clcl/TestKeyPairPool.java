@@ -0,0 +1,72 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestKeyPairPool {
+    private KeyPairPool keyPairPool;
+
+    public KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+    @Before
+    public void setup () {
+        this.keyPairPool = new KeyPairPool(2, 1);
+    }
+
+    @After
+    public void cleanup () {
+        getKeyPairPool().close();
+    }
+
+    @Test
+    public void testTake () throws Exception {
+        KeyPair keyPair = getKeyPairPool().take(30, TimeUnit.SECONDS);
+        assert (keyPair != null);
+        assert (getKeyPairPool().getHits() == 1);
+
+        KeyPair other = getKeyPairPool().take();
+        assert (other != null);
+        assert (!other.equals(keyPair));
+        assert (getKeyPairPool().getHits() + getKeyPairPool().getMisses() == 2);
+        assert (getKeyPairPool().getGenerated() >= 2);
+        assert (getKeyPairPool().getAverageGenerationMillis() > 0);
+        assert (getKeyPairPool().getGenerationRate() > 0);
+    }
+
+    @Test
+    public void testFill () throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (getKeyPairPool().getDepth() < getKeyPairPool().getCapacity() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assert (getKeyPairPool().getDepth() == 2);
+
+        getKeyPairPool().close();
+        assert (getKeyPairPool().isClosed());
+        assert (getKeyPairPool().take() != null);
+    }
+}
@@ -43,4 +43,11 @@ public class TestLDAPName {
         assert (getLdapName().equals(other));
         assert (!getLdapName().equals(different));
     }
+
+    @Test
+    public void testValueWithEquals () {
+        LDAPName name = new LDAPName(" ou = a=b ");
+        assert (name.getKey().equals("ou"));
+        assert (name.getValue().equals("a=b"));
+    }
 }
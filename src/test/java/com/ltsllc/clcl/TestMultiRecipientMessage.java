@@ -0,0 +1,156 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class TestMultiRecipientMessage {
+    public static final String TEST_MESSAGE = "The Magic Words are Squeamish Ossifrage";
+
+    private List<KeyPair> keyPairs;
+
+    public List<KeyPair> getKeyPairs() {
+        return keyPairs;
+    }
+
+    @Before
+    public void setup () throws EncryptionException {
+        this.keyPairs = new ArrayList<KeyPair>();
+        for (int i = 0; i < 3; i++) {
+            keyPairs.add(KeyPair.newKeys());
+        }
+    }
+
+    public List<PublicKey> getPublicKeys () {
+        List<PublicKey> publicKeys = new ArrayList<PublicKey>();
+        for (KeyPair keyPair : getKeyPairs()) {
+            publicKeys.add(keyPair.getPublicKey());
+        }
+
+        return publicKeys;
+    }
+
+    @Test
+    public void testKeyId () throws Exception {
+        KeyPair keyPair = getKeyPairs().get(0);
+        assert (keyPair.getPublicKey().getKeyId().equals(keyPair.getPrivateKey().getKeyId()));
+        assert (!keyPair.getPublicKey().getKeyId().equals(getKeyPairs().get(1).getPublicKey().getKeyId()));
+    }
+
+    @Test
+    public void testEncrypt () throws Exception {
+        MultiRecipientMessage message = MultiRecipientMessage.encrypt(CipherSuite.AES_GCM, getPublicKeys(),
+                TEST_MESSAGE.getBytes());
+
+        assert (message.getRecipientKeys().size() == 3);
+
+        for (KeyPair keyPair : getKeyPairs()) {
+            byte[] plainText = keyPair.getPrivateKey().decrypt(message);
+            assert (TEST_MESSAGE.equals(new String(plainText)));
+        }
+
+        KeyPair stranger = KeyPair.newKeys();
+        try {
+            stranger.getPrivateKey().decrypt(message);
+            assert (false);
+        } catch (EncryptionException e) {
+        }
+    }
+
+    @Test
+    public void testEncryptInPool () throws Exception {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+
+        try {
+            MultiRecipientMessage message = MultiRecipientMessage.encrypt(CipherSuite.AES_GCM, getPublicKeys(),
+                    TEST_MESSAGE.getBytes(), forkJoinPool);
+
+            // the recipients keep their order
+            List<String> keyIds = new ArrayList<String>();
+            for (PublicKey publicKey : getPublicKeys()) {
+                keyIds.add(publicKey.getKeyId());
+            }
+
+            assert (keyIds.equals(new ArrayList<String>(message.getKeyIds())));
+
+            for (KeyPair keyPair : getKeyPairs()) {
+                byte[] plainText = keyPair.getPrivateKey().decrypt(message);
+                assert (TEST_MESSAGE.equals(new String(plainText)));
+            }
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testBinary () throws Exception {
+        MultiRecipientMessage message = MultiRecipientMessage.encrypt(Key.SESSION_ALGORITHM, getPublicKeys(),
+                TEST_MESSAGE.getBytes());
+
+        byte[] bytes = message.toByteArray();
+        assert (bytes.length == message.getEncodedLength());
+
+        EncryptedMessage other = EncryptedMessage.fromByteArray(bytes);
+        assert (other instanceof MultiRecipientMessage);
+        assert (Arrays.equals(bytes, other.toByteArray()));
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        message.writeTo(byteArrayOutputStream);
+        other = EncryptedMessage.readFrom(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assert (other instanceof MultiRecipientMessage);
+
+        for (KeyPair keyPair : getKeyPairs()) {
+            byte[] plainText = keyPair.getPrivateKey().decrypt(other);
+            assert (TEST_MESSAGE.equals(new String(plainText)));
+        }
+    }
+
+    @Test
+    public void testUntrustedLength () throws Exception {
+        MultiRecipientMessage message = MultiRecipientMessage.encrypt(Key.SESSION_ALGORITHM, getPublicKeys(),
+                TEST_MESSAGE.getBytes());
+        byte[] bytes = message.toByteArray();
+        int messageLength = message.getMessageBytes().length;
+
+        try {
+            EncryptedMessage.readFrom(new ByteArrayInputStream(bytes), messageLength - 1);
+            assert (false);
+        } catch (IOException e) {
+        }
+
+        // a length that claims almost 2 GB, followed by a few bytes, is not allocated up front
+        ByteBuffer.wrap(bytes).putInt(bytes.length - messageLength - 4, EncryptedMessage.MAX_MESSAGE_LENGTH);
+
+        try {
+            EncryptedMessage.readFrom(new ByteArrayInputStream(bytes));
+            assert (false);
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class TestSegmentedMessage {
+    private KeyPair keyPair;
+    private byte[] plainText;
+
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    public byte[] getPlainText() {
+        return plainText;
+    }
+
+    @Before
+    public void setup () throws EncryptionException {
+        this.keyPair = KeyPair.newKeys();
+
+        this.plainText = new byte[10 * 1000 + 7];
+        new Random(1).nextBytes(plainText);
+    }
+
+    public SegmentedMessage encrypt (int segmentSize) throws EncryptionException {
+        return SegmentedMessage.encrypt(getKeyPair().getPublicKey(), CipherSuite.AES_GCM, getPlainText(),
+                segmentSize, ForkJoinPool.commonPool());
+    }
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        for (int segmentSize : new int[] { 1000, 1001, 4096, 1 << 20 }) {
+            SegmentedMessage segmentedMessage = encrypt(segmentSize);
+            byte[] decrypted = getKeyPair().getPrivateKey().decrypt(segmentedMessage);
+            assert (Arrays.equals(getPlainText(), decrypted));
+        }
+
+        SegmentedMessage empty = getKeyPair().getPublicKey().encryptSegmented(CipherSuite.AES_GCM, new byte[0]);
+        assert (getKeyPair().getPrivateKey().decrypt(empty).length == 0);
+    }
+
+    @Test
+    public void testBinary () throws Exception {
+        SegmentedMessage segmentedMessage = encrypt(1000);
+        byte[] bytes = segmentedMessage.toByteArray();
+        assert (bytes.length == segmentedMessage.getEncodedLength());
+
+        EncryptedMessage other = EncryptedMessage.fromByteArray(bytes);
+        assert (other instanceof SegmentedMessage);
+        assert (((SegmentedMessage) other).getSegmentSize() == 1000);
+        assert (Arrays.equals(getPlainText(), getKeyPair().getPrivateKey().decrypt(other)));
+    }
+
+    @Test
+    public void testTampering () throws Exception {
+        SegmentedMessage segmentedMessage = encrypt(1000);
+        byte[] cipherText = segmentedMessage.getMessageBytes();
+        int segmentLength = 1000 + 16;
+
+        //
+        // swapping two segments
+        //
+        byte[] swapped = cipherText.clone();
+        System.arraycopy(cipherText, 0, swapped, segmentLength, segmentLength);
+        System.arraycopy(cipherText, segmentLength, swapped, 0, segmentLength);
+        assertFails(segmentedMessage, swapped);
+
+        //
+        // dropping the last segment
+        //
+        byte[] truncated = Arrays.copyOf(cipherText, 5 * segmentLength);
+        assertFails(segmentedMessage, truncated);
+
+        //
+        // changing a byte
+        //
+        byte[] changed = cipherText.clone();
+        changed[3 * segmentLength + 10] ^= 1;
+        assertFails(segmentedMessage, changed);
+    }
+
+    public void assertFails (SegmentedMessage segmentedMessage, byte[] cipherText) {
+        SegmentedMessage tampered = new SegmentedMessage(segmentedMessage.getAlgorithm(),
+                segmentedMessage.getKeyBytes(), segmentedMessage.getIv(), cipherText,
+                segmentedMessage.getSegmentSize());
+
+        try {
+            getKeyPair().getPrivateKey().decrypt(tampered);
+            assert (false);
+        } catch (EncryptionException e) {
+        }
+    }
+
+    @Test
+    public void testEncryptFile () throws Exception {
+        Path plainTextFile = Files.createTempFile("plain", ".bin");
+        Path cipherTextFile = Files.createTempFile("cipher", ".bin");
+        Path decryptedFile = Files.createTempFile("decrypted", ".bin");
+
+        try {
+            //
+            // more than one buffer's worth, and not a whole number of segments
+            //
+            byte[] contents = new byte[2 * Key.FILE_BUFFER_SIZE + 13];
+            new Random(2).nextBytes(contents);
+            Files.write(plainTextFile, contents);
+
+            getKeyPair().getPublicKey().encryptFile(plainTextFile, cipherTextFile);
+            getKeyPair().getPrivateKey().decryptFile(cipherTextFile, decryptedFile);
+            assert (Arrays.equals(contents, Files.readAllBytes(decryptedFile)));
+
+            Files.write(plainTextFile, new byte[0]);
+            getKeyPair().getPublicKey().encryptFile(plainTextFile, cipherTextFile);
+            getKeyPair().getPrivateKey().decryptFile(cipherTextFile, decryptedFile);
+            assert (Files.size(decryptedFile) == 0);
+        } finally {
+            Files.deleteIfExists(plainTextFile);
+            Files.deleteIfExists(cipherTextFile);
+            Files.deleteIfExists(decryptedFile);
+        }
+    }
+
+    @Test
+    public void testDecryptTamperedFile () throws Exception {
+        Path plainTextFile = Files.createTempFile("plain", ".bin");
+        Path cipherTextFile = Files.createTempFile("cipher", ".bin");
+        Path decryptedFile = plainTextFile.resolveSibling(plainTextFile.getFileName() + ".decrypted");
+
+        try {
+            Files.write(plainTextFile, getPlainText());
+            getKeyPair().getPublicKey().encryptFile(plainTextFile, cipherTextFile);
+
+            byte[] cipherText = Files.readAllBytes(cipherTextFile);
+            cipherText[cipherText.length - 100] ^= 1;
+            Files.write(cipherTextFile, cipherText);
+
+            try {
+                getKeyPair().getPrivateKey().decryptFile(cipherTextFile, decryptedFile);
+                assert (false);
+            } catch (EncryptionException e) {
+            }
+
+            assert (!Files.exists(decryptedFile));
+        } finally {
+            Files.deleteIfExists(plainTextFile);
+            Files.deleteIfExists(cipherTextFile);
+            Files.deleteIfExists(decryptedFile);
+        }
+    }
+
+    @Test
+    public void testUnauthenticated () {
+        try {
+            getKeyPair().getPublicKey().encryptSegmented(Key.SESSION_ALGORITHM, getPlainText());
+            assert (false);
+        } catch (EncryptionException e) {
+        }
+    }
+}
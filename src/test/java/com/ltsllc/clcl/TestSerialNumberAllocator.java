@@ -0,0 +1,119 @@
+/*
+ * Copyright  2017 Long Term Software LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.ltsllc.clcl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TestSerialNumberAllocator {
+    private Path directory;
+
+    @Before
+    public void setup () throws Exception {
+        directory = Files.createTempDirectory("clcl");
+    }
+
+    @After
+    public void cleanup () throws Exception {
+        for (Path path : Files.newDirectoryStream(directory)) {
+            Files.delete(path);
+        }
+
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testRandom () throws Exception {
+        RandomSerialNumberAllocator allocator = new RandomSerialNumberAllocator();
+        Set<BigInteger> serialNumbers = new HashSet<BigInteger>();
+
+        for (int i = 0; i < 1000; i++) {
+            BigInteger serialNumber = allocator.next();
+            assert (serialNumber.signum() > 0);
+            assert (serialNumber.toByteArray().length <= 20);
+            assert (serialNumbers.add(serialNumber));
+        }
+
+        try {
+            new RandomSerialNumberAllocator(32);
+            assert (false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCounter () throws Exception {
+        Path file = directory.resolve("serial");
+        CounterSerialNumberAllocator allocator = new CounterSerialNumberAllocator(file, 10);
+
+        assert (allocator.next().equals(BigInteger.ONE));
+        assert (allocator.getHighWaterMark() == 11);
+
+        for (int i = 2; i <= 25; i++) {
+            assert (allocator.next().longValue() == i);
+        }
+
+        assert (allocator.getHighWaterMark() == 31);
+
+        // a restart, whether or not the old allocator stopped cleanly, skips the rest of the batch
+        CounterSerialNumberAllocator restarted = new CounterSerialNumberAllocator(file, 10);
+        assert (restarted.next().longValue() == 31);
+    }
+
+    @Test
+    public void testCounterThreads () throws Exception {
+        final CounterSerialNumberAllocator allocator =
+                new CounterSerialNumberAllocator(directory.resolve("serial"), 7);
+        final Set<BigInteger> serialNumbers = Collections.synchronizedSet(new HashSet<BigInteger>());
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executorService.submit(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 500; j++) {
+                            serialNumbers.add(allocator.next());
+                        }
+                    } catch (EncryptionException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assert (executorService.awaitTermination(1, TimeUnit.MINUTES));
+        assert (serialNumbers.size() == 4000);
+
+        CounterSerialNumberAllocator restarted = new CounterSerialNumberAllocator(directory.resolve("serial"), 7);
+        assert (!serialNumbers.contains(restarted.next()));
+    }
+}